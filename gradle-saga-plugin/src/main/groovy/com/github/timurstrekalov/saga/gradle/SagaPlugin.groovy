@@ -18,6 +18,8 @@ class SagaPlugin implements Plugin<Project> {
 
             gen.outputInstrumentedFiles = cfg.outputInstrumentedFiles
             gen.cacheInstrumentedCode = cfg.cacheInstrumentedCode
+            gen.instrumentedCodeCacheMaxBytes = cfg.instrumentedCodeCacheMaxBytes
+            gen.clearInstrumentedCodeCache = cfg.clearInstrumentedCodeCache
             gen.noInstrumentPatterns = cfg.noInstrumentPatterns
             gen.outputStrategy = cfg.outputStrategy
             gen.threadCount = cfg.threadCount
@@ -25,9 +27,27 @@ class SagaPlugin implements Plugin<Project> {
             gen.backgroundJavaScriptTimeout = cfg.backgroundJavaScriptTimeout
             gen.sourcesToPreload = cfg.sourcesToPreload
             gen.sourcesToPreloadEncoding = cfg.sourcesToPreloadEncoding
+            gen.instrumentationCacheDir = cfg.instrumentationCacheDir
+            gen.preserveSourceFormatting = cfg.preserveSourceFormatting
+            gen.counterStyle = cfg.counterStyle
+            gen.lineHitOnly = cfg.lineHitOnly
+            gen.maxTestsPerWebClient = cfg.maxTestsPerWebClient
+            gen.maxWebClientAllocatedBytes = cfg.maxWebClientAllocatedBytes
+            gen.forkCount = cfg.forkCount
+            gen.forkedWorkerMaxHeap = cfg.forkedWorkerMaxHeap
+            gen.forkedWorkerThreadCount = cfg.forkedWorkerThreadCount
+            gen.testTimeout = cfg.testTimeout
+            gen.instructionBudget = cfg.instructionBudget
+            gen.completionPredicate = cfg.completionPredicate
+            gen.virtualClock = cfg.virtualClock
+            gen.rawReportFormat = cfg.rawReportFormat
 
             gen.run()
         }
+
+        project.task('clearCoverageCache') << {
+            CoverageGenerator.clearInstrumentedCodeCache()
+        }
     }
 
 }
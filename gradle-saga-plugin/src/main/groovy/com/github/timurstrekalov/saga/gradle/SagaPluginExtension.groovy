@@ -16,6 +16,10 @@ class SagaPluginExtension {
 
     Boolean cacheInstrumentedCode
 
+    Long instrumentedCodeCacheMaxBytes
+
+    Boolean clearInstrumentedCodeCache
+
     String outputStrategy
 
     Integer threadCount
@@ -28,4 +32,32 @@ class SagaPluginExtension {
 
     String sourcesToPreloadEncoding
 
+    File instrumentationCacheDir
+
+    Boolean preserveSourceFormatting
+
+    String counterStyle
+
+    Boolean lineHitOnly
+
+    Integer maxTestsPerWebClient
+
+    Long maxWebClientAllocatedBytes
+
+    Integer forkCount
+
+    String forkedWorkerMaxHeap
+
+    Integer forkedWorkerThreadCount
+
+    Long testTimeout
+
+    Long instructionBudget
+
+    String completionPredicate
+
+    Boolean virtualClock
+
+    String rawReportFormat
+
 }
@@ -1,7 +1,9 @@
 package com.github.timurstrekalov.saga.cli;
 
+import com.github.timurstrekalov.saga.core.CounterStyle;
 import com.github.timurstrekalov.saga.core.CoverageGenerator;
 import com.github.timurstrekalov.saga.core.OutputStrategy;
+import com.github.timurstrekalov.saga.core.RawReportFormat;
 import org.apache.commons.cli.*;
 
 import java.io.File;
@@ -10,12 +12,19 @@ import java.util.Arrays;
 
 public class Main {
 
+    private static final String MERGE_COMMAND = "merge";
+
     public static void main(final String[] args) throws IOException, ParseException {
+        // "merge" merges the raw coverage reports matched by the includes instead of running tests
+        final boolean merge = args.length > 0 && MERGE_COMMAND.equals(args[0]);
+        final String[] optionArgs = merge ? Arrays.copyOfRange(args, 1, args.length) : args;
+
         final Option baseDirOpt = new Option("b", "base-dir", true, "Base directory for test search");
         final Option includeOpt = new Option("i", "include", true,
-                "Comma-separated list of Ant-style paths to the tests to run");
+                "Comma-separated list of Ant-style paths to the tests to run, or to the raw coverage reports to merge "
+                        + "(*-coverage.dat or *-coverage.bin) with the merge command");
         final Option excludeOpt = new Option("e", "exclude", true,
-                "Comma-separated list of Ant-style paths to the tests to exclude from run");
+                "Comma-separated list of Ant-style paths to the tests (or raw coverage reports) to exclude");
 
         final Option outputDirOpt = new Option("o", "output-dir", true, "The output directory for coverage reports");
 
@@ -23,7 +32,9 @@ public class Main {
                 "Whether to output instrumented files (default is false)");
 
         final Option noInstrumentPatternOpt = new Option("n", "no-instrument-pattern", true,
-                "Regular expression patterns to match classes to exclude from instrumentation");
+                "Regular expression patterns to match classes to exclude from instrumentation. Eval'd and generated " +
+                "scripts are named eval(<hash>) and JavaScriptStringJob(<hash>) after their code, but are also " +
+                "matched by the names they had before, e.g. page.html#12(eval)");
         noInstrumentPatternOpt.setArgs(Option.UNLIMITED_VALUES);
 
         final Option sourcesToPreload = new Option("p", "preload-sources", true,
@@ -41,6 +52,59 @@ public class Main {
         final Option backgroundJavaScriptTimeoutOpt = new Option("j", "background-javascript-timeout", false,
                 "How long to wait for background JavaScript to finish running (in milliseconds, default is 5 minutes)");
 
+        final Option instrumentationCacheDirOpt = new Option("c", "instrumentation-cache-dir", true,
+                "Directory to keep instrumented scripts in between runs (disabled by default)");
+
+        final Option preserveSourceFormattingOpt = new Option(null, "preserve-source-formatting", false,
+                "Whether to insert the coverage counters into the original source instead of regenerating it "
+                        + "(keeps the formatting and line numbers, default is false)");
+
+        final Option counterStyleOpt = new Option(null, "counter-style", true,
+                "How the instrumented code counts executed statements. One of " + Arrays.toString(CounterStyle.values())
+                        + " (default is PROPERTY)");
+
+        final Option lineHitOnlyOpt = new Option(null, "line-hit-only", false,
+                "Whether to only record if a line was executed instead of how many times, "
+                        + "which makes instrumentation overhead much lower (default is false)");
+
+        final Option maxTestsPerWebClientOpt = new Option(null, "max-tests-per-web-client", true,
+                "The number of tests after which a web client is replaced with a fresh one (default is no limit)");
+
+        final Option maxWebClientAllocatedBytesOpt = new Option(null, "max-web-client-allocated-bytes", true,
+                "The number of bytes allocated while running tests after which a web client is replaced with a fresh "
+                        + "one (default is no limit)");
+
+        final Option forkCountOpt = new Option(null, "fork-count", true,
+                "The number of worker JVMs to split the tests between (default is 0, which runs them in this JVM)");
+
+        final Option forkedWorkerMaxHeapOpt = new Option(null, "forked-worker-max-heap", true,
+                "The maximum heap size of every worker JVM, e.g. 512m (defaults to the JVM's default)");
+
+        final Option forkedWorkerThreadCountOpt = new Option(null, "forked-worker-thread-count", true,
+                "The maximum number of threads every worker JVM uses (defaults to the thread count divided by the "
+                        + "fork count)");
+
+        final Option testTimeoutOpt = new Option(null, "test-timeout", true,
+                "How long a single test may run before its scripts are stopped and it's reported as timed out "
+                        + "(in milliseconds, default is no limit)");
+
+        final Option instructionBudgetOpt = new Option(null, "instruction-budget", true,
+                "How many JavaScript instructions a single test may execute before its scripts are stopped and it's "
+                        + "reported as timed out (default is no limit)");
+
+        final Option completionPredicateOpt = new Option(null, "completion-predicate", true,
+                "JavaScript expression that becomes true once a test has finished, e.g. "
+                        + "jasmine.getEnv().currentRunner().finished, so coverage is collected right away instead of "
+                        + "after all background JavaScript has finished (default is to wait for background JavaScript)");
+
+        final Option virtualClockOpt = new Option(null, "virtual-clock", false,
+                "Whether to run setTimeout and setInterval on a clock that jumps ahead to the next timer instead of "
+                        + "waiting for it (default is false)");
+
+        final Option rawReportFormatOpt = new Option(null, "raw-report-format", true,
+                "Format of the raw coverage reports. One of " + Arrays.toString(RawReportFormat.values())
+                        + " (default is LCOV)");
+
         final Option helpOpt = new Option("h", "help", false, "Print this message");
         final Options options = new Options();
 
@@ -56,10 +120,24 @@ public class Main {
         options.addOption(helpOpt);
         options.addOption(backgroundJavaScriptTimeoutOpt);
         options.addOption(sourcesToPreload);
+        options.addOption(instrumentationCacheDirOpt);
+        options.addOption(preserveSourceFormattingOpt);
+        options.addOption(counterStyleOpt);
+        options.addOption(lineHitOnlyOpt);
+        options.addOption(maxTestsPerWebClientOpt);
+        options.addOption(maxWebClientAllocatedBytesOpt);
+        options.addOption(forkCountOpt);
+        options.addOption(forkedWorkerMaxHeapOpt);
+        options.addOption(forkedWorkerThreadCountOpt);
+        options.addOption(testTimeoutOpt);
+        options.addOption(instructionBudgetOpt);
+        options.addOption(completionPredicateOpt);
+        options.addOption(virtualClockOpt);
+        options.addOption(rawReportFormatOpt);
 
         try {
             CommandLineParser parser = new GnuParser();
-            CommandLine line = parser.parse(options, args, false);
+            CommandLine line = parser.parse(options, optionArgs, false);
 
             baseDirOpt.setRequired(true);
             includeOpt.setRequired(true);
@@ -74,7 +152,7 @@ public class Main {
             }
 
             parser = new GnuParser();
-            line = parser.parse(options, args);
+            line = parser.parse(options, optionArgs);
 
             final File baseDir = new File(line.getOptionValue('b'));
             final String includes = line.getOptionValue('i');
@@ -115,7 +193,96 @@ public class Main {
                 }
             }
 
-            gen.run();
+            final String instrumentationCacheDir = line.getOptionValue('c');
+            if (instrumentationCacheDir != null) {
+                gen.setInstrumentationCacheDir(new File(instrumentationCacheDir));
+            }
+
+            if (line.hasOption("preserve-source-formatting")) {
+                gen.setPreserveSourceFormatting(true);
+            }
+
+            gen.setCounterStyle(line.getOptionValue("counter-style"));
+
+            if (line.hasOption("line-hit-only")) {
+                gen.setLineHitOnly(true);
+            }
+
+            final String maxTestsPerWebClient = line.getOptionValue("max-tests-per-web-client");
+            if (maxTestsPerWebClient != null) {
+                try {
+                    gen.setMaxTestsPerWebClient(Integer.parseInt(maxTestsPerWebClient));
+                } catch (final Exception e) {
+                    System.err.println("Invalid maximum number of tests per web client");
+                    printHelpAndExit(options);
+                }
+            }
+
+            final String maxWebClientAllocatedBytes = line.getOptionValue("max-web-client-allocated-bytes");
+            if (maxWebClientAllocatedBytes != null) {
+                try {
+                    gen.setMaxWebClientAllocatedBytes(Long.valueOf(maxWebClientAllocatedBytes));
+                } catch (final Exception e) {
+                    System.err.println("Invalid maximum number of bytes allocated per web client");
+                    printHelpAndExit(options);
+                }
+            }
+
+            final String forkCount = line.getOptionValue("fork-count");
+            if (forkCount != null) {
+                try {
+                    gen.setForkCount(Integer.parseInt(forkCount));
+                } catch (final Exception e) {
+                    System.err.println("Invalid fork count");
+                    printHelpAndExit(options);
+                }
+            }
+
+            gen.setForkedWorkerMaxHeap(line.getOptionValue("forked-worker-max-heap"));
+
+            final String forkedWorkerThreadCount = line.getOptionValue("forked-worker-thread-count");
+            if (forkedWorkerThreadCount != null) {
+                try {
+                    gen.setForkedWorkerThreadCount(Integer.parseInt(forkedWorkerThreadCount));
+                } catch (final Exception e) {
+                    System.err.println("Invalid forked worker thread count");
+                    printHelpAndExit(options);
+                }
+            }
+
+            final String testTimeout = line.getOptionValue("test-timeout");
+            if (testTimeout != null) {
+                try {
+                    gen.setTestTimeout(Long.valueOf(testTimeout));
+                } catch (final Exception e) {
+                    System.err.println("Invalid test timeout");
+                    printHelpAndExit(options);
+                }
+            }
+
+            final String instructionBudget = line.getOptionValue("instruction-budget");
+            if (instructionBudget != null) {
+                try {
+                    gen.setInstructionBudget(Long.valueOf(instructionBudget));
+                } catch (final Exception e) {
+                    System.err.println("Invalid instruction budget");
+                    printHelpAndExit(options);
+                }
+            }
+
+            gen.setCompletionPredicate(line.getOptionValue("completion-predicate"));
+
+            if (line.hasOption("virtual-clock")) {
+                gen.setVirtualClock(true);
+            }
+
+            gen.setRawReportFormat(line.getOptionValue("raw-report-format"));
+
+            if (merge) {
+                gen.merge();
+            } else {
+                gen.run();
+            }
         } catch (final MissingOptionException e) {
             System.err.println(e.getMessage());
             printHelpAndExit(options);
@@ -129,7 +296,8 @@ public class Main {
     }
 
     private static void printHelpAndExit(final Options options) {
-        new HelpFormatter().printHelp("java -jar saga-cli-<version>-jar-with-dependencies.jar", options, true);
+        new HelpFormatter().printHelp("java -jar saga-cli-<version>-jar-with-dependencies.jar [" + MERGE_COMMAND + "]",
+                options, true);
         System.exit(1);
     }
 
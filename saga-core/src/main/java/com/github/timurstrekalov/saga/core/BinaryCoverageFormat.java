@@ -0,0 +1,58 @@
+package com.github.timurstrekalov.saga.core;
+
+import com.google.common.base.Charsets;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * The layout of the binary raw coverage files, all numbers being unsigned LEB128 varints:
+ *
+ * <pre>
+ * "SAGA" version fileCount
+ * fileCount x (nameLength name separateFile lineCount hitsOffset hitsLength)
+ * fileCount x (lineCount x (hits + 1))
+ * </pre>
+ *
+ * The names are UTF-8, separateFile is 0 or 1, and the offsets of the hits are relative to the end of the file table.
+ * The hits of a line are stored plus one, so that lines that aren't executable (-1) take up a single zero byte, and so
+ * does every line that was executed less than 127 times.
+ */
+final class BinaryCoverageFormat {
+
+    static final byte[] MAGIC = {'S', 'A', 'G', 'A'};
+    static final int VERSION = 1;
+    static final Charset CHARSET = Charsets.UTF_8;
+
+    private BinaryCoverageFormat() {
+    }
+
+    static void writeVarint(final OutputStream out, final int value) throws IOException {
+        int remaining = value;
+
+        while ((remaining & ~0x7F) != 0) {
+            out.write((remaining & 0x7F) | 0x80);
+            remaining >>>= 7;
+        }
+
+        out.write(remaining);
+    }
+
+    static int readVarint(final ByteBuffer in) throws IOException {
+        int value = 0;
+
+        for (int shift = 0; shift < 32; shift += 7) {
+            final byte b = in.get();
+            value |= (b & 0x7F) << shift;
+
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+
+        throw new IOException("Malformed varint at " + in.position());
+    }
+
+}
@@ -0,0 +1,132 @@
+package com.github.timurstrekalov.saga.core;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+import static com.github.timurstrekalov.saga.core.BinaryCoverageFormat.*;
+
+/**
+ * Reads a binary raw coverage file by mapping it into memory. Only the file table is decoded up front, the hits of a
+ * file are decoded when they're asked for, so reading a few files out of a large report is cheap. The hits can be read
+ * from several threads at the same time.
+ *
+ * @see BinaryCoverageFormat
+ */
+public final class BinaryCoverageReader implements Closeable {
+
+    private final RandomAccessFile file;
+    private final ByteBuffer buffer;
+
+    private final String[] fileNames;
+    private final boolean[] separateFiles;
+    private final int[] lineCounts;
+    private final int[] hitsPositions;
+
+    private BinaryCoverageReader(final File file) throws IOException {
+        this.file = new RandomAccessFile(file, "r");
+
+        try {
+            buffer = this.file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, this.file.length());
+
+            final byte[] magic = new byte[MAGIC.length];
+            buffer.get(magic);
+
+            if (!Arrays.equals(magic, MAGIC)) {
+                throw new IOException(file + " is not a binary coverage file");
+            }
+
+            final int version = readVarint(buffer);
+
+            if (version != VERSION) {
+                throw new IOException("Unsupported version of " + file + ": " + version);
+            }
+
+            final int fileCount = readVarint(buffer);
+
+            fileNames = new String[fileCount];
+            separateFiles = new boolean[fileCount];
+            lineCounts = new int[fileCount];
+            hitsPositions = new int[fileCount];
+
+            for (int i = 0; i < fileCount; i++) {
+                final byte[] name = new byte[readVarint(buffer)];
+                buffer.get(name);
+
+                fileNames[i] = new String(name, CHARSET);
+                separateFiles[i] = buffer.get() != 0;
+                lineCounts[i] = readVarint(buffer);
+                hitsPositions[i] = readVarint(buffer);
+
+                // the length of the hits, only needed by readers that skip them without decoding
+                readVarint(buffer);
+            }
+
+            final int hitsSectionPosition = buffer.position();
+
+            for (int i = 0; i < fileCount; i++) {
+                hitsPositions[i] += hitsSectionPosition;
+            }
+        } catch (final BufferUnderflowException e) {
+            this.file.close();
+            throw new IOException(file + " is truncated");
+        } catch (final IOException e) {
+            this.file.close();
+            throw e;
+        }
+    }
+
+    public static BinaryCoverageReader open(final File file) throws IOException {
+        return new BinaryCoverageReader(file);
+    }
+
+    public int getFileCount() {
+        return fileNames.length;
+    }
+
+    public String getFileName(final int index) {
+        return fileNames[index];
+    }
+
+    /**
+     * @return whether the file is a script of its own, as opposed to a script inline in an HTML page
+     */
+    public boolean isSeparateFile(final int index) {
+        return separateFiles[index];
+    }
+
+    public int getLineCount(final int index) {
+        return lineCounts[index];
+    }
+
+    /**
+     * @return the number of times each line of the file was executed, or -1 for the lines that aren't executable
+     */
+    public int[] readHits(final int index) throws IOException {
+        final ByteBuffer in = buffer.duplicate();
+        in.position(hitsPositions[index]);
+
+        final int[] hits = new int[lineCounts[index]];
+
+        try {
+            for (int i = 0; i < hits.length; i++) {
+                hits[i] = readVarint(in) - 1;
+            }
+        } catch (final BufferUnderflowException e) {
+            throw new IOException("The hits of " + fileNames[index] + " are truncated");
+        }
+
+        return hits;
+    }
+
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+
+}
@@ -0,0 +1,55 @@
+package com.github.timurstrekalov.saga.core;
+
+import com.google.common.io.Closeables;
+
+import java.io.*;
+import java.util.Collection;
+
+import static com.github.timurstrekalov.saga.core.BinaryCoverageFormat.*;
+
+/**
+ * Writes the coverage of a run in the binary raw format
+ *
+ * @see BinaryCoverageFormat
+ */
+class BinaryCoverageWriter {
+
+    private BinaryCoverageWriter() {
+    }
+
+    static void write(final Collection<FileStats> fileStats, final File file) throws IOException {
+        final ByteArrayOutputStream fileTable = new ByteArrayOutputStream(fileStats.size() * 64);
+        final ByteArrayOutputStream hitsSection = new ByteArrayOutputStream(fileStats.size() * 256);
+
+        for (final FileStats stats : fileStats) {
+            final byte[] name = stats.getFullName().getBytes(CHARSET);
+            final int[] hits = stats.getHits();
+            final int hitsOffset = hitsSection.size();
+
+            for (final int timesExecuted : hits) {
+                writeVarint(hitsSection, timesExecuted + 1);
+            }
+
+            writeVarint(fileTable, name.length);
+            fileTable.write(name);
+            fileTable.write(stats.isSeparateFile() ? 1 : 0);
+            writeVarint(fileTable, hits.length);
+            writeVarint(fileTable, hitsOffset);
+            writeVarint(fileTable, hitsSection.size() - hitsOffset);
+        }
+
+        final OutputStream out = new BufferedOutputStream(new FileOutputStream(file));
+
+        try {
+            out.write(MAGIC);
+            writeVarint(out, VERSION);
+            writeVarint(out, fileStats.size());
+            fileTable.writeTo(out);
+            hitsSection.writeTo(out);
+            out.close();
+        } finally {
+            Closeables.closeQuietly(out);
+        }
+    }
+
+}
@@ -0,0 +1,40 @@
+package com.github.timurstrekalov.saga.core;
+
+/**
+ * How the instrumented code keeps track of the number of times each statement was executed
+ */
+public enum CounterStyle {
+    /**
+     * {@code __coverage_data['/path/to/file.js'][lineNr]++}
+     */
+    PROPERTY,
+    /**
+     * {@code alias[index]++}, where the alias is bound to an array of counters once per script
+     */
+    ARRAY {
+        @Override
+        public boolean isIndexed() {
+            return true;
+        }
+    },
+    /**
+     * The same as {@link #ARRAY}, but the counters are a Java {@code int[]} per script, which is read directly after
+     * the test instead of being copied out of the JavaScript objects
+     *
+     * @see CoverageCounters
+     */
+    HOST {
+        @Override
+        public boolean isIndexed() {
+            return true;
+        }
+    };
+
+    /**
+     * @return whether statements are counted by their index in the script's counters rather than by line number
+     */
+    public boolean isIndexed() {
+        return false;
+    }
+
+}
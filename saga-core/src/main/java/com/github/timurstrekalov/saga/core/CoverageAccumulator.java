@@ -0,0 +1,124 @@
+package com.github.timurstrekalov.saga.core;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Maps;
+
+import java.io.File;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Adds up the coverage of many tests into a single array of hit counts per file, which any number of threads can add
+ * to at the same time. Unlike merging the stats of every test into a {@link RunStats}, adding a test's coverage doesn't
+ * allocate anything once a file has been seen, and doesn't have to wait for other threads, except for the odd retry of
+ * an atomic update. The file stats are only built once, when the total is turned into {@link RunStats}.
+ */
+class CoverageAccumulator {
+
+    private final ConcurrentMap<String, FileCoverage> coverageByFileName = Maps.newConcurrentMap();
+    private final boolean lineHitOnly;
+
+    /**
+     * @param lineHitOnly whether to only keep track of the lines having been executed at all, clamping the counts to 1
+     */
+    CoverageAccumulator(final boolean lineHitOnly) {
+        this.lineHitOnly = lineHitOnly;
+    }
+
+    void add(final RunStats runStats) {
+        for (final FileStats fileStats : runStats.getUnsortedFileStats()) {
+            add(fileStats);
+        }
+    }
+
+    void add(final FileStats fileStats) {
+        final String fileName = fileStats.getFullName();
+        FileCoverage fileCoverage = coverageByFileName.get(fileName);
+
+        if (fileCoverage == null) {
+            final FileCoverage newFileCoverage = new FileCoverage(fileStats);
+            fileCoverage = coverageByFileName.putIfAbsent(fileName, newFileCoverage);
+
+            if (fileCoverage == null) {
+                fileCoverage = newFileCoverage;
+            }
+        }
+
+        fileCoverage.add(fileStats);
+    }
+
+    int size() {
+        return coverageByFileName.size();
+    }
+
+    /**
+     * Should only be called once all threads are done adding, or the stats might be missing some hits
+     */
+    RunStats toRunStats(final File test, final String title) {
+        final RunStats runStats = new RunStats(test, title);
+        runStats.setLineHitOnly(lineHitOnly);
+
+        for (final FileCoverage fileCoverage : coverageByFileName.values()) {
+            runStats.add(fileCoverage.toFileStats());
+        }
+
+        return runStats;
+    }
+
+    private class FileCoverage {
+
+        /**
+         * Only the name and lines of these stats are used, they're the same for every test
+         */
+        private final FileStats layout;
+
+        /**
+         * -1 for the lines that aren't executable, same as in {@link FileStats#getHits()}
+         */
+        private final AtomicIntegerArray hits;
+
+        private FileCoverage(final FileStats layout) {
+            final int[] layoutHits = layout.getHits();
+
+            this.layout = layout;
+            this.hits = new AtomicIntegerArray(layoutHits.length);
+
+            for (int i = 0; i < layoutHits.length; i++) {
+                if (layoutHits[i] < 0) {
+                    hits.set(i, -1);
+                }
+            }
+        }
+
+        private void add(final FileStats fileStats) {
+            final int[] newHits = fileStats.getHits();
+
+            Preconditions.checkArgument(newHits.length == hits.length(),
+                    "Got different numbers of line coverage records: %s and %s", fileStats, layout);
+
+            for (int i = 0; i < newHits.length; i++) {
+                final int timesExecuted = newHits[i];
+
+                if (timesExecuted > 0 && hits.get(i) >= 0) {
+                    if (!lineHitOnly) {
+                        hits.addAndGet(i, timesExecuted);
+                    } else if (hits.get(i) == 0) {
+                        hits.set(i, 1);
+                    }
+                }
+            }
+        }
+
+        private FileStats toFileStats() {
+            final int[] result = new int[hits.length()];
+
+            for (int i = 0; i < result.length; i++) {
+                result[i] = hits.get(i);
+            }
+
+            return layout.withHits(result);
+        }
+
+    }
+
+}
@@ -0,0 +1,150 @@
+package com.github.timurstrekalov.saga.core;
+
+import com.google.common.collect.Maps;
+import net.sourceforge.htmlunit.corejs.javascript.BaseFunction;
+import net.sourceforge.htmlunit.corejs.javascript.Context;
+import net.sourceforge.htmlunit.corejs.javascript.Scriptable;
+import net.sourceforge.htmlunit.corejs.javascript.ScriptableObject;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Statement counters of the scripts run by a single client, kept on the Java side. Scripts instrumented with
+ * {@link CounterStyle#HOST} get their counters by calling the function registered in every window as
+ * {@link #FUNCTION_NAME}, and then increment them as if they were a regular array.
+ * <p>
+ * Every window (or rather every page, since a window gets a new scope for every page it loads) has counters of its
+ * own, just like the coverage object the other counter styles keep on the window, so that the same test reports the
+ * same counts whatever the counter style.
+ */
+class CoverageCounters {
+
+    static final String FUNCTION_NAME = "__saga_counters";
+
+    /**
+     * Keyed by the identity of the window scopes, which are only kept until the next {@link #clear()}
+     */
+    private final Map<Scriptable, ConcurrentMap<String, int[]>> countersByScope =
+            Collections.synchronizedMap(Maps.<Scriptable, ConcurrentMap<String, int[]>>newIdentityHashMap());
+
+    /**
+     * Scripts loaded more than once into the same window keep adding to the same counters, like the ones instrumented
+     * with the other counter styles do when they find their counters already on the window
+     */
+    int[] allocate(final Scriptable scope, final String sourceName, final int size) {
+        final ConcurrentMap<String, int[]> countersBySourceName = getCountersBySourceName(scope);
+        final int[] counters = countersBySourceName.get(sourceName);
+
+        if (counters != null && counters.length == size) {
+            return counters;
+        }
+
+        final int[] newCounters = new int[size];
+        countersBySourceName.put(sourceName, newCounters);
+        return newCounters;
+    }
+
+    /**
+     * @return the counters of the script in the given window, or null if it hasn't run there
+     */
+    int[] get(final Scriptable scope, final String sourceName) {
+        final ConcurrentMap<String, int[]> countersBySourceName = countersByScope.get(scope);
+        return countersBySourceName != null ? countersBySourceName.get(sourceName) : null;
+    }
+
+    /**
+     * @return whether no script has allocated counters in the given window
+     */
+    boolean isEmpty(final Scriptable scope) {
+        final ConcurrentMap<String, int[]> countersBySourceName = countersByScope.get(scope);
+        return countersBySourceName == null || countersBySourceName.isEmpty();
+    }
+
+    /**
+     * @return whether no script has allocated counters in any window
+     */
+    boolean isEmpty() {
+        return countersByScope.isEmpty();
+    }
+
+    void clear() {
+        countersByScope.clear();
+    }
+
+    void register(final ScriptableObject scope) {
+        scope.defineProperty(FUNCTION_NAME, new AllocatingFunction(scope), ScriptableObject.DONTENUM);
+    }
+
+    private ConcurrentMap<String, int[]> getCountersBySourceName(final Scriptable scope) {
+        synchronized (countersByScope) {
+            ConcurrentMap<String, int[]> countersBySourceName = countersByScope.get(scope);
+
+            if (countersBySourceName == null) {
+                countersBySourceName = Maps.newConcurrentMap();
+                countersByScope.put(scope, countersBySourceName);
+            }
+
+            return countersBySourceName;
+        }
+    }
+
+    private class AllocatingFunction extends BaseFunction {
+
+        /**
+         * The window the function has been registered in, rather than the scope it's called from, which might be the
+         * activation of a function
+         */
+        private final Scriptable windowScope;
+
+        private AllocatingFunction(final Scriptable windowScope) {
+            this.windowScope = windowScope;
+        }
+
+        @Override
+        public Object call(final Context cx, final Scriptable scope, final Scriptable thisObj, final Object[] args) {
+            final String sourceName = Context.toString(args[0]);
+            final int size = (int) Context.toNumber(args[1]);
+
+            return new CounterArray(allocate(windowScope, sourceName, size));
+        }
+
+    }
+
+    /**
+     * Just enough of an array for {@code counters[index]++} to work
+     */
+    private static class CounterArray extends ScriptableObject {
+
+        private final int[] counters;
+
+        private CounterArray(final int[] counters) {
+            this.counters = counters;
+        }
+
+        @Override
+        public String getClassName() {
+            return "SagaCounters";
+        }
+
+        @Override
+        public boolean has(final int index, final Scriptable start) {
+            return index >= 0 && index < counters.length;
+        }
+
+        @Override
+        public Object get(final int index, final Scriptable start) {
+            return has(index, start) ? Integer.valueOf(counters[index]) : NOT_FOUND;
+        }
+
+        @Override
+        public void put(final int index, final Scriptable start, final Object value) {
+            if (has(index, start)) {
+                counters[index] = (int) Context.toNumber(value);
+            }
+        }
+
+    }
+
+}
@@ -8,10 +8,13 @@ import com.gargoylesoftware.htmlunit.html.HtmlPage;
 import com.gargoylesoftware.htmlunit.javascript.HtmlUnitContextFactory;
 import com.google.common.base.Function;
 import com.google.common.base.Preconditions;
+import com.google.common.cache.CacheStats;
 import com.google.common.collect.*;
 import com.google.common.io.CharStreams;
 import com.google.common.io.Files;
+import net.sourceforge.htmlunit.corejs.javascript.NativeArray;
 import net.sourceforge.htmlunit.corejs.javascript.NativeObject;
+import net.sourceforge.htmlunit.corejs.javascript.Scriptable;
 import net.sourceforge.htmlunit.corejs.javascript.Undefined;
 import org.apache.commons.lang.StringUtils;
 import org.apache.commons.logging.LogFactory;
@@ -23,14 +26,15 @@ import org.stringtemplate.v4.STGroupDir;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
 import java.net.URI;
 import java.nio.charset.Charset;
 import java.util.*;
 import java.util.concurrent.*;
 import java.util.logging.Level;
-import java.util.regex.Pattern;
 
-public class CoverageGenerator {
+public class CoverageGenerator implements Serializable {
 
     private static final Properties config;
 
@@ -44,8 +48,13 @@ public class CoverageGenerator {
     }
 
     private static final Logger logger = LoggerFactory.getLogger(CoverageGenerator.class);
-    private static final ThreadLocal<WebClient> localClient = new SagaWebClient();
     private static final String inlineScriptRe = ".+__from_\\d+_\\d+_to_\\d+_\\d+$";
+    private static final long COMPLETION_POLL_INTERVAL = 50;
+
+    /**
+     * How long a test may keep running past its timeout, collecting its coverage, before its thread is abandoned
+     */
+    private static final long TEST_TIMEOUT_GRACE_PERIOD = 30 * 1000;
 
     private final File baseDir;
     private final String includes;
@@ -55,25 +64,43 @@ public class CoverageGenerator {
     private Set<String> noInstrumentPatterns = Sets.newHashSet();
     private boolean outputInstrumentedFiles;
 
-    private final STGroup stringTemplateGroup;
+    private transient STGroup stringTemplateGroup;
 
     private String coverageVariableName = "__coverage_data";
 
     private String reportName = "total";
     private String instrumentedFileDirectoryName = "instrumented";
     private boolean cacheInstrumentedCode = true;
+    private long instrumentedCodeCacheMaxBytes = InstrumentedScriptCache.DEFAULT_MAX_BYTES;
+    private boolean clearInstrumentedCodeCache;
 
     private OutputStrategy outputStrategy = OutputStrategy.TOTAL;
+    private RawReportFormat rawReportFormat = RawReportFormat.LCOV;
 
     private int threadCount = Runtime.getRuntime().availableProcessors();
 
     private boolean includeInlineScripts = false;
 
     private long backgroundJavaScriptTimeout = 5 * 60 * 1000;
+    private long testTimeout;
+    private long instructionBudget;
+    private String completionPredicate;
+    private boolean virtualClock;
 
     private String sourcesToPreload;
     private String sourcesToPreloadEncoding = "UTF-8";
 
+    private File instrumentationCacheDir;
+    private boolean preserveSourceFormatting;
+    private CounterStyle counterStyle = CounterStyle.PROPERTY;
+    private boolean lineHitOnly;
+    private int maxTestsPerWebClient;
+    private long maxWebClientAllocatedBytes;
+
+    private int forkCount;
+    private String forkedWorkerMaxHeap;
+    private int forkedWorkerThreadCount;
+
     public CoverageGenerator(final File baseDir, final String includes, final File outputDir) {
         this(baseDir, includes, null, outputDir);
     }
@@ -87,8 +114,22 @@ public class CoverageGenerator {
         this.outputDir = outputDir;
 
         stringTemplateGroup = new STGroupDir("stringTemplates", '$', '$');
+        silenceHtmlUnit();
+    }
+
+    /**
+     * Forked workers get their settings by deserializing the generator, which skips the constructor
+     *
+     * @see ForkedTestRunner
+     */
+    private void readObject(final ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
 
-        // make HtmlUnit shut up
+        stringTemplateGroup = new STGroupDir("stringTemplates", '$', '$');
+        silenceHtmlUnit();
+    }
+
+    private static void silenceHtmlUnit() {
         LogFactory.getFactory().setAttribute("org.apache.commons.logging.Log", "org.apache.commons.logging.impl.NoOpLog");
 
         java.util.logging.Logger.getLogger("com.gargoylesoftware.htmlunit").setLevel(Level.OFF);
@@ -109,22 +150,37 @@ public class CoverageGenerator {
         logger.info("{} tests found", tests.size());
         threadCount = Math.min(threadCount, tests.size());
 
-        logger.info("Using up to {} threads", threadCount);
+        if (forkCount > 0) {
+            logger.info("Using {} forked workers", Math.min(forkCount, tests.size()));
+        } else {
+            logger.info("Using up to {} threads", threadCount);
+        }
+
         logger.info("Output strategy set to {}", outputStrategy);
 
         if (!includeInlineScripts) {
             noInstrumentPatterns.add(inlineScriptRe);
-            noInstrumentPatterns.add(".+JavaScriptStringJob");
-            noInstrumentPatterns.add(".+#\\d+\\(eval\\)\\(\\d+\\)");
+            noInstrumentPatterns.add("JavaScriptStringJob\\([0-9a-f]+\\)");
+            noInstrumentPatterns.add("eval\\([0-9a-f]+\\)");
         }
 
         if (!noInstrumentPatterns.isEmpty()) {
             logger.info("Using the following no-instrument patterns:\n\t{}", StringUtils.join(noInstrumentPatterns, "\n\t"));
         }
 
-        final Collection<Pattern> ignorePatterns = createPatterns();
+        final NoInstrumentMatcher noInstrumentMatcher = new NoInstrumentMatcher(noInstrumentPatterns);
         final File instrumentedFileDirectory = new File(outputDir, instrumentedFileDirectoryName);
-        final RunStats totalStats = new RunStats(new File(outputDir, reportName), "Total coverage report");
+        final CoverageAccumulator totalCoverage = new CoverageAccumulator(lineHitOnly);
+        final InstrumentationCache instrumentationCache = createInstrumentationCache();
+        final InstrumentedScriptCache instrumentedScriptCache = ScriptInstrumenter.getInstrumentedScriptCache();
+
+        if (clearInstrumentedCodeCache) {
+            logger.info("Clearing instrumented code cache");
+            ScriptInstrumenter.clearCaches();
+        }
+
+        instrumentedScriptCache.setMaxBytes(instrumentedCodeCacheMaxBytes);
+        final CacheStats instrumentedScriptCacheStatsBefore = instrumentedScriptCache.stats();
 
         if (outputStrategy.contains(OutputStrategy.TOTAL) && sourcesToPreload != null) {
             logger.info("Using {} to preload sources", sourcesToPreloadEncoding);
@@ -134,102 +190,395 @@ public class CoverageGenerator {
 
             logger.info("Preloading {} files", filesToPreload.size());
 
-            final WebClient webClient = localClient.get();
-            final ScriptInstrumenter instrumenter = newInstrumenter(ignorePatterns, instrumentedFileDirectory,
-                    webClient.getJavaScriptEngine().getContextFactory());
+            for (final FileStats fileStats : preloadSources(filesToPreload, noInstrumentMatcher, instrumentedFileDirectory,
+                    instrumentationCache)) {
+                totalCoverage.add(fileStats);
+            }
+        }
 
-            for (final File file : filesToPreload) {
-                logger.debug("Preloading {}", file);
+        final TestDurationHistory testDurationHistory = new TestDurationHistory(baseDir,
+                new File(outputDir, TestDurationHistory.FILE_NAME));
+        testDurationHistory.load();
 
-                final String source = CharStreams.toString(Files.newReaderSupplier(file, Charset.forName(sourcesToPreloadEncoding)));
-                instrumenter.preProcess(null, source, file.getAbsolutePath(), 0, null);
-            }
+        final List<File> scheduledTests = testDurationHistory.sortLongestFirst(tests);
+        final long predictedMakespan = testDurationHistory.predictMakespan(scheduledTests, getParallelism(tests.size()));
 
-            for (final ScriptData data : instrumenter.getScriptDataList()) {
-                final Map<Integer, Double> coverageData = Maps.newHashMap();
+        final Queue<File> timedOutTests = Queues.newConcurrentLinkedQueue();
 
-                for (final Integer lineNumber : data.getLineNumbersOfAllStatements()) {
-                    coverageData.put(lineNumber, 0.0);
+        // the coverage of every test is added to the total right away by the thread that ran it, so that only one copy
+        // of each file's hit counts has to be kept, no matter how many tests there are
+        final RunStatsListener runStatsListener = new RunStatsListener() {
+            @Override
+            public void testFinished(final RunStats runStats) {
+                if (runStats == RunStats.EMPTY) {
+                    return;
                 }
 
-                final FileStats fileStats = getFileStatsFromScriptData(coverageData, data);
-                totalStats.add(fileStats);
+                testDurationHistory.record(runStats.test, runStats.getDuration());
+
+                if (runStats.isTimedOut()) {
+                    timedOutTests.add(runStats.test);
+                }
+
+                if (outputStrategy.contains(OutputStrategy.TOTAL)) {
+                    totalCoverage.add(runStats);
+                }
             }
+        };
+
+        final long startTime = System.currentTimeMillis();
+
+        if (forkCount > 0) {
+            new ForkedTestRunner(this, Math.min(forkCount, tests.size()), forkedWorkerMaxHeap)
+                    .run(scheduledTests, runStatsListener);
+        } else {
+            runTests(scheduledTests, noInstrumentMatcher, instrumentedFileDirectory, instrumentationCache,
+                    runStatsListener);
         }
 
-        final ExecutorService executorService = Executors.newFixedThreadPool(threadCount);
-        final CompletionService<RunStats> completionService = new ExecutorCompletionService<RunStats>(executorService);
+        final long makespan = System.currentTimeMillis() - startTime;
 
-        for (final File test : tests) {
-            completionService.submit(new Callable<RunStats>() {
-                @Override
-                public RunStats call() {
-                    logger.info("Running {}", test.getAbsoluteFile().toURI().normalize().getPath());
+        if (predictedMakespan >= 0) {
+            logger.info("Test run finished in {} s, predicted {} s", makespan / 1000.0, predictedMakespan / 1000.0);
+        } else {
+            logger.info("Test run finished in {} s", makespan / 1000.0);
+        }
 
-                    try {
-                        final RunStats runStats = runTest(test, ignorePatterns, instrumentedFileDirectory);
+        testDurationHistory.save(tests);
 
-                        if (runStats == RunStats.EMPTY) {
-                            logger.warn("No actual test run for file: {}", test);
-                        } else if (outputStrategy.contains(OutputStrategy.PER_TEST)) {
-                            writeRunStats(runStats);
-                        }
+        if (!timedOutTests.isEmpty()) {
+            logger.warn("{} tests timed out, their coverage is incomplete:\n\t{}", timedOutTests.size(),
+                    StringUtils.join(timedOutTests, "\n\t"));
+        }
+
+        if (cacheInstrumentedCode) {
+            final CacheStats stats = instrumentedScriptCache.stats().minus(instrumentedScriptCacheStatsBefore);
+
+            logger.info("Instrumented code cache: {} scripts, {} KB, {} evictions, {}% hit ratio", new Object[] {
+                    instrumentedScriptCache.size(),
+                    instrumentedScriptCache.getBytes() / 1024,
+                    stats.evictionCount(),
+                    Math.round(stats.hitRate() * 100)
+            });
+        }
 
-                        return runStats;
-                    } catch (final IOException e) {
-                        return RunStats.EMPTY;
+        if (instrumentationCache != null) {
+            logger.info("Instrumentation cache at {}: {} hits, {} misses", new Object[] {
+                    instrumentationCache.getDirectory().getAbsolutePath(),
+                    instrumentationCache.getHits(),
+                    instrumentationCache.getMisses()
+            });
+        }
+
+        if (outputStrategy.contains(OutputStrategy.TOTAL)) {
+            writeRunStats(totalCoverage.toRunStats(new File(outputDir, reportName), "Total coverage report"));
+        }
+    }
+
+    /**
+     * Merges raw coverage reports of either format, e.g. the total reports of several shards of a build, into a single
+     * total report. The reports are found the same way as the tests, in the base directory using the includes and
+     * excludes, and are read using up to {@link #threadCount} threads. The sources of the files, which the raw reports
+     * don't have, are read using the encoding of the sources to preload.
+     */
+    public void merge() throws IOException {
+        FileUtils.mkdir(outputDir.getAbsolutePath());
+
+        @SuppressWarnings("unchecked")
+        final List<File> rawReports = FileUtils.getFiles(baseDir, includes, excludes);
+
+        if (rawReports.isEmpty()) {
+            logger.warn("No raw coverage reports found, exiting");
+            return;
+        }
+
+        final int mergeThreadCount = Math.min(threadCount, rawReports.size());
+        logger.info("Merging {} raw coverage reports using up to {} threads", rawReports.size(), mergeThreadCount);
+
+        final CoverageAccumulator totalCoverage = new CoverageAccumulator(lineHitOnly);
+        final RawCoverageMerger merger = new RawCoverageMerger(totalCoverage, Charset.forName(sourcesToPreloadEncoding));
+
+        final long startTime = System.currentTimeMillis();
+        final ExecutorService executorService = Executors.newFixedThreadPool(mergeThreadCount);
+        final CompletionService<File> completionService = new ExecutorCompletionService<File>(executorService);
+
+        // only the reports being read by the threads are held in memory, the rest are just files waiting in the queue
+        for (final File rawReport : rawReports) {
+            completionService.submit(new Callable<File>() {
+                @Override
+                public File call() throws IOException {
+                    logger.debug("Merging {}", rawReport);
+
+                    try {
+                        merger.merge(rawReport);
+                    } catch (final Exception e) {
+                        throw new IOException(rawReport.getAbsolutePath() + ": " + e.getMessage(), e);
                     }
+
+                    return rawReport;
                 }
             });
         }
 
-        final List<RunStats> allRunStats = Lists.newLinkedList();
+        int failures = 0;
 
         try {
-            for (final File test : tests) {
+            for (int i = 0; i < rawReports.size(); i++) {
                 try {
-                    final Future<RunStats> future = completionService.take();
-                    final RunStats runStats = future.get();
-
-                    allRunStats.add(runStats);
-                } catch (final Exception e) {
-                    logger.warn("Error running test {}: {}", test.getAbsolutePath(), e.getMessage());
+                    completionService.take().get();
+                } catch (final ExecutionException e) {
+                    logger.warn("Error merging raw coverage report: {}", e.getCause().getMessage());
                     logger.debug(e.getMessage(), e);
+                    failures++;
                 }
             }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while merging raw coverage reports");
         } finally {
             executorService.shutdown();
         }
 
-        logger.info("Test run finished");
+        logger.info("Merged {} raw coverage reports covering {} files in {} s{}", new Object[] {
+                rawReports.size() - failures,
+                totalCoverage.size(),
+                (System.currentTimeMillis() - startTime) / 1000.0,
+                failures > 0 ? ", " + failures + " could not be read" : ""
+        });
 
-        if (outputStrategy.contains(OutputStrategy.TOTAL)) {
-            for (final RunStats runStats : allRunStats) {
-                if (runStats != RunStats.EMPTY) {
-                    for (final FileStats fileStats : runStats) {
-                        totalStats.add(fileStats);
+        writeRunStats(totalCoverage.toRunStats(new File(outputDir, reportName), "Total coverage report"));
+    }
+
+    /**
+     * Runs a share of the tests inside a forked worker JVM, the same way {@link #run()} runs all of them in-process
+     *
+     * @see ForkedWorker
+     */
+    void runInWorker(final List<File> tests, final int forkCount, final RunStatsListener runStatsListener)
+            throws IOException {
+        threadCount = Math.min(getForkedWorkerThreadCount(forkCount), tests.size());
+
+        logger.info("Running {} tests using up to {} threads", tests.size(), threadCount);
+
+        final NoInstrumentMatcher noInstrumentMatcher = new NoInstrumentMatcher(noInstrumentPatterns);
+        final File instrumentedFileDirectory = new File(outputDir, instrumentedFileDirectoryName);
+        final InstrumentationCache instrumentationCache = createInstrumentationCache();
+
+        ScriptInstrumenter.getInstrumentedScriptCache().setMaxBytes(instrumentedCodeCacheMaxBytes);
+
+        runTests(tests, noInstrumentMatcher, instrumentedFileDirectory, instrumentationCache, runStatsListener);
+    }
+
+    private int getForkedWorkerThreadCount(final int forkCount) {
+        return forkedWorkerThreadCount > 0 ? forkedWorkerThreadCount : Math.max(threadCount / forkCount, 1);
+    }
+
+    /**
+     * @return the number of tests that can run at the same time
+     */
+    private int getParallelism(final int testCount) {
+        if (forkCount > 0) {
+            final int actualForkCount = Math.min(forkCount, testCount);
+            return actualForkCount * getForkedWorkerThreadCount(actualForkCount);
+        }
+
+        return threadCount;
+    }
+
+    /**
+     * Runs the tests on {@link #threadCount} threads at a time, handing the stats of every test to the listener as soon
+     * as it finishes. Tests still stuck {@link #TEST_TIMEOUT_GRACE_PERIOD} ms past their timeout are abandoned.
+     *
+     * @see TestScheduler
+     */
+    private void runTests(
+            final List<File> tests,
+            final NoInstrumentMatcher noInstrumentMatcher,
+            final File instrumentedFileDirectory,
+            final InstrumentationCache instrumentationCache,
+            final RunStatsListener runStatsListener) throws IOException {
+        final WebClientPool webClientPool = new WebClientPool(threadCount, maxTestsPerWebClient,
+                maxWebClientAllocatedBytes, virtualClock);
+
+        try {
+            new TestScheduler(threadCount, testTimeout, TEST_TIMEOUT_GRACE_PERIOD).run(tests,
+                    new TestScheduler.TestRunner() {
+                        @Override
+                        public RunStats run(final File test, final TestScheduler.Attempt attempt) {
+                            return runTest(webClientPool, test, attempt, noInstrumentMatcher,
+                                    instrumentedFileDirectory, instrumentationCache);
+                        }
+                    }, runStatsListener);
+        } finally {
+            webClientPool.close();
+        }
+    }
+
+    /**
+     * Runs a single test on a pooled client
+     */
+    private RunStats runTest(
+            final WebClientPool webClientPool,
+            final File test,
+            final TestScheduler.Attempt attempt,
+            final NoInstrumentMatcher noInstrumentMatcher,
+            final File instrumentedFileDirectory,
+            final InstrumentationCache instrumentationCache) {
+        logger.info("Running {}", test.getAbsoluteFile().toURI().normalize().getPath());
+
+        final WebClient client = webClientPool.borrow();
+        boolean timedOut = false;
+        RunStats runStats = RunStats.EMPTY;
+
+        try {
+            runStats = runTest(client, test, noInstrumentMatcher, instrumentedFileDirectory, instrumentationCache);
+
+            final long duration = System.currentTimeMillis() - attempt.getStartTime();
+            timedOut = hasHitLimit(client, test, duration);
+
+            if (runStats == RunStats.EMPTY) {
+                logger.warn("No actual test run for file: {}", test);
+            } else {
+                runStats.setDuration(duration);
+                runStats.setTimedOut(timedOut);
+
+                if (outputStrategy.contains(OutputStrategy.PER_TEST) && !attempt.isAbandoned()) {
+                    writeRunStats(runStats);
+                }
+            }
+        } catch (final IOException e) {
+            runStats = RunStats.EMPTY;
+        } finally {
+            // a client that has hit a limit or been abandoned might still have scripts running, so it's not reused
+            webClientPool.release(client, timedOut || attempt.isAbandoned());
+        }
+
+        return runStats;
+    }
+
+    /**
+     * Reads, instruments and turns every file into zero-coverage stats using all available cores. The instrumented
+     * scripts end up in the shared instrumentation cache, so the tests loading the same files later don't have to
+     * parse them again.
+     */
+    private List<FileStats> preloadSources(
+            final List<File> filesToPreload,
+            final NoInstrumentMatcher noInstrumentMatcher,
+            final File instrumentedFileDirectory,
+            final InstrumentationCache instrumentationCache) throws IOException {
+        if (filesToPreload.isEmpty()) {
+            return Collections.emptyList();
+        }
+
+        // only the context factory of the client is needed, it never loads a page
+        final WebClient client = SagaWebClient.newWebClient(false);
+        final HtmlUnitContextFactory contextFactory = client.getJavaScriptEngine().getContextFactory();
+
+        final Charset charset = Charset.forName(sourcesToPreloadEncoding);
+
+        final List<Callable<FileStats>> tasks = Lists.newArrayListWithCapacity(filesToPreload.size());
+
+        for (final File file : filesToPreload) {
+            tasks.add(new Callable<FileStats>() {
+                @Override
+                public FileStats call() throws IOException {
+                    logger.debug("Preloading {}", file);
+
+                    final String source = CharStreams.toString(Files.newReaderSupplier(file, charset));
+
+                    final ScriptInstrumenter instrumenter = newInstrumenter(noInstrumentMatcher, instrumentedFileDirectory,
+                            instrumentationCache, contextFactory);
+                    instrumenter.preProcess(null, source, file.getAbsolutePath(), 0, null);
+
+                    if (instrumenter.getScriptDataList().isEmpty()) {
+                        return null;
+                    }
+
+                    final ScriptData data = instrumenter.getScriptDataList().get(0);
+                    return getFileStatsFromScriptData(new int[data.getNumberOfStatements()], data);
+                }
+            });
+        }
+
+        final int preloadThreadCount = Math.min(Runtime.getRuntime().availableProcessors(), filesToPreload.size());
+        final ExecutorService executorService = Executors.newFixedThreadPool(preloadThreadCount);
+        final List<FileStats> result = Lists.newArrayListWithCapacity(filesToPreload.size());
+
+        try {
+            final List<Future<FileStats>> futures = executorService.invokeAll(tasks);
+
+            for (int i = 0; i < futures.size(); i++) {
+                try {
+                    final FileStats fileStats = futures.get(i).get();
+
+                    if (fileStats != null) {
+                        result.add(fileStats);
                     }
+                } catch (final ExecutionException e) {
+                    logger.warn("Error preloading {}: {}", filesToPreload.get(i), e.getCause().getMessage());
+                    logger.debug(e.getMessage(), e);
                 }
             }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while preloading sources");
+        } finally {
+            executorService.shutdown();
+            client.closeAllWindows();
+        }
 
-            writeRunStats(totalStats);
+        return result;
+    }
+
+    private InstrumentationCache createInstrumentationCache() {
+        if (instrumentationCacheDir == null) {
+            return null;
         }
+
+        logger.info("Using instrumentation cache directory {}", instrumentationCacheDir.getAbsolutePath());
+        return new InstrumentationCache(instrumentationCacheDir, config.getProperty("app.version"));
     }
 
-    private Collection<Pattern> createPatterns() {
-        return Collections2.transform(noInstrumentPatterns, new Function<String, Pattern>() {
-            @Override
-            public Pattern apply(final String input) {
-                return Pattern.compile(input);
-            }
-        });
+    /**
+     * @return whether the test has run past its timeout or instruction budget
+     */
+    private boolean hasHitLimit(final WebClient client, final File test, final long duration) {
+        final LimitingContextFactory limitingContextFactory = getLimitingContextFactory(client);
+
+        if (testTimeout > 0 && duration >= testTimeout) {
+            logger.warn("Test {} timed out after {} ms, keeping the coverage recorded until then", test, duration);
+            return true;
+        }
+
+        if (limitingContextFactory != null && limitingContextFactory.isLimitExceeded()) {
+            logger.warn("Test {} ran out of its budget of {} instructions, keeping the coverage recorded until then",
+                    test, instructionBudget);
+            return true;
+        }
+
+        return false;
     }
 
-    private RunStats runTest(final File test, final Collection<Pattern> ignorePatterns, final File instrumentedFileDirectory)
-            throws IOException {
-        final WebClient client = localClient.get();
-        final ScriptInstrumenter instrumenter = newInstrumenter(ignorePatterns, instrumentedFileDirectory,
-                client.getJavaScriptEngine().getContextFactory());
+    private RunStats runTest(
+            final WebClient client,
+            final File test,
+            final NoInstrumentMatcher noInstrumentMatcher,
+            final File instrumentedFileDirectory,
+            final InstrumentationCache instrumentationCache) throws IOException {
+        getCoverageCounters(client).clear();
+
+        final long deadline = testTimeout > 0 ? System.currentTimeMillis() + testTimeout : 0;
+        final LimitingContextFactory limitingContextFactory = getLimitingContextFactory(client);
+
+        if (limitingContextFactory != null) {
+            limitingContextFactory.startLimiting(deadline, instructionBudget);
+        } else if (testTimeout > 0) {
+            // the next best thing: no single script may run for longer than the whole test
+            client.setJavaScriptTimeout(testTimeout);
+        }
+
+        final ScriptInstrumenter instrumenter = newInstrumenter(noInstrumentMatcher, instrumentedFileDirectory,
+                instrumentationCache, client.getJavaScriptEngine().getContextFactory());
 
         client.setScriptPreProcessor(instrumenter);
 
@@ -249,17 +598,18 @@ public class CoverageGenerator {
             throw new RuntimeException("Unsupported page type: " + page.getUrl() + " (of class " + page.getClass() + ")");
         }
 
-        return collectAndRunStats(client, htmlPage, test, instrumenter);
+        return collectAndRunStats(client, htmlPage, test, instrumenter, deadline);
     }
 
     private ScriptInstrumenter newInstrumenter(
-            final Collection<Pattern> ignorePatterns,
+            final NoInstrumentMatcher noInstrumentMatcher,
             final File instrumentedFileDirectory,
+            final InstrumentationCache instrumentationCache,
             final HtmlUnitContextFactory contextFactory) {
 
         final ScriptInstrumenter instrumenter = new ScriptInstrumenter(contextFactory, coverageVariableName);
 
-        instrumenter.setIgnorePatterns(ignorePatterns);
+        instrumenter.setNoInstrumentMatcher(noInstrumentMatcher);
 
         if (outputInstrumentedFiles) {
             FileUtils.mkdir(instrumentedFileDirectory.getAbsolutePath());
@@ -269,6 +619,10 @@ public class CoverageGenerator {
         }
 
         instrumenter.setCacheInstrumentedCode(cacheInstrumentedCode);
+        instrumenter.setPersistentCache(instrumentationCache);
+        instrumenter.setPreserveSourceFormatting(preserveSourceFormatting);
+        instrumenter.setCounterStyle(counterStyle);
+        instrumenter.setLineHitOnly(lineHitOnly);
 
         return instrumenter;
     }
@@ -277,80 +631,219 @@ public class CoverageGenerator {
             final WebClient client,
             final HtmlPage htmlPage,
             final File test,
-            final ScriptInstrumenter instrumenter) throws IOException {
+            final ScriptInstrumenter instrumenter,
+            final long deadline) throws IOException {
+
+        final long timeout = deadline > 0
+                ? Math.min(backgroundJavaScriptTimeout, Math.max(deadline - System.currentTimeMillis(), 0))
+                : backgroundJavaScriptTimeout;
+
+        final long waitUntil = System.currentTimeMillis() + timeout;
+        final VirtualClock virtualClock = getVirtualClock(client);
+
+        if (virtualClock != null) {
+            runVirtualTimers(client, htmlPage, virtualClock, waitUntil);
+        }
+
+        final long remaining = Math.max(waitUntil - System.currentTimeMillis(), 0);
+
+        if (completionPredicate != null) {
+            waitForCompletion(client, htmlPage, test, remaining);
+        } else {
+            client.waitForBackgroundJavaScript(remaining);
+        }
 
-        client.waitForBackgroundJavaScript(backgroundJavaScriptTimeout);
         client.setScriptPreProcessor(null);
 
+        final LimitingContextFactory limitingContextFactory = getLimitingContextFactory(client);
+
+        if (limitingContextFactory != null) {
+            // let the coverage data be read even if the test has hit a limit
+            limitingContextFactory.stopLimiting();
+        }
+
+        if (counterStyle == CounterStyle.HOST) {
+            final CoverageCounters coverageCounters = getCoverageCounters(client);
+
+            // only the counters of the test page's window, like the coverage object read from it below
+            final Scriptable window = (Scriptable) htmlPage.getEnclosingWindow().getScriptObject();
+
+            if (!coverageCounters.isEmpty(window)) {
+                return collectAndWriteRunStats(test, instrumenter, new Function<String, Object>() {
+                    @Override
+                    public Object apply(final String sourceName) {
+                        return coverageCounters.get(window, sourceName);
+                    }
+                });
+            }
+
+            return RunStats.EMPTY;
+        }
+
         final Object javaScriptResult = htmlPage.executeJavaScript("window." + coverageVariableName)
                 .getJavaScriptResult();
 
         if (!(javaScriptResult instanceof Undefined)) {
-            return collectAndWriteRunStats(test, instrumenter, (NativeObject) javaScriptResult);
+            final NativeObject allCoverageData = (NativeObject) javaScriptResult;
+
+            return collectAndWriteRunStats(test, instrumenter, new Function<String, Object>() {
+                @Override
+                public Object apply(final String sourceName) {
+                    return allCoverageData.get(sourceName);
+                }
+            });
         }
 
         return RunStats.EMPTY;
     }
 
-    @SuppressWarnings("unchecked")
+    /**
+     * Waits until the completion predicate holds, instead of waiting for all background JavaScript to finish, which
+     * might never happen when the test keeps timers running. Also stops waiting if there's no background JavaScript
+     * left to run, because then nothing is going to change the outcome of the predicate anymore.
+     */
+    private void waitForCompletion(final WebClient client, final HtmlPage htmlPage, final File test, final long timeout) {
+        final long waitUntil = System.currentTimeMillis() + timeout;
+
+        while (!isComplete(htmlPage)) {
+            final long remaining = waitUntil - System.currentTimeMillis();
+
+            if (remaining <= 0) {
+                logger.warn("Test {} didn't complete within {} ms", test, timeout);
+                return;
+            }
+
+            if (client.waitForBackgroundJavaScript(Math.min(COMPLETION_POLL_INTERVAL, remaining)) == 0) {
+                logger.debug("No background JavaScript left to run for {}", test);
+                return;
+            }
+        }
+    }
+
+    private boolean isComplete(final HtmlPage htmlPage) {
+        // the predicate may refer to things the test hasn't set up yet, which shouldn't be reported as script errors
+        final String guardedPredicate = "(function() { try { return !!(" + completionPredicate + "); } "
+                + "catch (e) { return false; } })()";
+
+        return Boolean.TRUE.equals(htmlPage.executeJavaScript(guardedPredicate).getJavaScriptResult());
+    }
+
+    /**
+     * Runs the timers of the test, moving the virtual clock forward to the next one whenever no other background
+     * JavaScript (e.g. an XMLHttpRequest) is in progress. Stops when there are no timers left, the completion
+     * predicate holds, or the clock is as far ahead of the real one as the background JavaScript timeout, which is how
+     * long the timers would have had to run on the real clock.
+     */
+    private void runVirtualTimers(
+            final WebClient client,
+            final HtmlPage htmlPage,
+            final VirtualClock virtualClock,
+            final long waitUntil) {
+
+        while (System.currentTimeMillis() < waitUntil) {
+            if (completionPredicate != null && isComplete(htmlPage)) {
+                return;
+            }
+
+            try {
+                if (virtualClock.runNextDueTimer()) {
+                    continue;
+                }
+            } catch (final RuntimeException e) {
+                logger.debug(e.getMessage(), e);
+                continue;
+            }
+
+            if (client.waitForBackgroundJavaScript(0) > 0) {
+                client.waitForBackgroundJavaScript(
+                        Math.min(COMPLETION_POLL_INTERVAL, Math.max(waitUntil - System.currentTimeMillis(), 0)));
+            } else if (!virtualClock.advanceToNextTimer(backgroundJavaScriptTimeout)) {
+                return;
+            }
+        }
+    }
+
     private RunStats collectAndWriteRunStats(
             final File test,
             final ScriptInstrumenter instrumenter,
-            final NativeObject allCoverageData) throws IOException {
+            final Function<String, Object> allCounters) throws IOException {
         final RunStats runStats = new RunStats(test);
+        runStats.setLineHitOnly(lineHitOnly);
 
         for (final ScriptData data : instrumenter.getScriptDataList()) {
-            final Map<Integer, Double> coverageData = (Map) allCoverageData.get(data.getSourceName());
-            final FileStats fileStats = getFileStatsFromScriptData(coverageData, data);
+            final int[] counts = getCounts(data, allCounters.apply(data.getSourceName()));
+            final FileStats fileStats = getFileStatsFromScriptData(counts, data);
             runStats.add(fileStats);
         }
 
         return runStats;
     }
 
-    private FileStats getFileStatsFromScriptData(final Map<Integer, Double> coverageData, final ScriptData data) {
-        final Scanner in = new Scanner(data.getSourceCode());
-
-        final List<LineCoverageRecord> lineCoverageRecords = Lists.newArrayList();
+    private CoverageCounters getCoverageCounters(final WebClient client) {
+        return ((SagaJavaScriptEngine) client.getJavaScriptEngine()).getCoverageCounters();
+    }
 
-        if (!data.getLineNumbersOfAllStatements().isEmpty()) {
-            // pad with extra line coverage records if first executable statement is not the first line (comments at the start of files)
-            for (int lineNr = 1; lineNr < data.getLineNumberOfFirstStatement() && in.hasNext(); lineNr++) {
-                lineCoverageRecords.add(new LineCoverageRecord(lineNr, -1, in.nextLine()));
-            }
+    private VirtualClock getVirtualClock(final WebClient client) {
+        return ((SagaJavaScriptEngine) client.getJavaScriptEngine()).getVirtualClock();
+    }
 
-            for (int lineNr = data.getLineNumberOfFirstStatement(), lengthCountdown = 0; in.hasNext(); lineNr++) {
-                final String line = in.nextLine();
+    private LimitingContextFactory getLimitingContextFactory(final WebClient client) {
+        return ((SagaJavaScriptEngine) client.getJavaScriptEngine()).getLimitingContextFactory();
+    }
 
-                final Double coverageEntry = coverageData.get(lineNr);
-                final int timesLineExecuted;
+    /**
+     * Turns the counters of a script into the number of times each of its statements was executed, in line order
+     *
+     * @see CounterStyle
+     */
+    private int[] getCounts(final ScriptData data, final Object counters) {
+        final int numberOfStatements = data.getNumberOfStatements();
 
-                if (coverageEntry == null) {
-                    final int lineLength = line.trim().length();
+        if (counters instanceof int[] && ((int[]) counters).length == numberOfStatements) {
+            return (int[]) counters;
+        }
 
-                    if (lengthCountdown > 0 && lineLength > 0) {
-                        lengthCountdown -= lineLength;
-                        timesLineExecuted = -1;
-                    } else {
-                        timesLineExecuted = data.hasStatement(lineNr) ? 0 : -1;
-                    }
-                } else {
-                    timesLineExecuted = coverageEntry.intValue();
+        final int[] counts = new int[numberOfStatements];
 
-                    if (data.getStatementLength(lineNr) != null) {
-                        lengthCountdown = data.getStatementLength(lineNr);
-                    }
-                }
+        if (counters instanceof NativeArray) {
+            final NativeArray array = (NativeArray) counters;
 
-                lineCoverageRecords.add(new LineCoverageRecord(lineNr, timesLineExecuted, line));
+            for (int i = 0; i < numberOfStatements; i++) {
+                counts[i] = toCount(array.get(i, array));
             }
-        } else {
-            for (int lineNr = 1; in.hasNext(); lineNr++) {
-                lineCoverageRecords.add(new LineCoverageRecord(lineNr, -1, in.nextLine()));
+        } else if (counters instanceof Map) {
+            final Map<?, ?> map = (Map<?, ?>) counters;
+
+            int i = 0;
+            for (final Integer lineNr : data.getLineNumbersOfAllStatements()) {
+                counts[i++] = toCount(map.get(lineNr));
             }
         }
 
-        return new FileStats(data.getSourceName(), lineCoverageRecords, data.isSeparateFile());
+        return counts;
+    }
+
+    private int toCount(final Object count) {
+        return count instanceof Number ? ((Number) count).intValue() : 0;
+    }
+
+    private int clamp(final int count) {
+        return lineHitOnly ? Math.min(count, 1) : count;
+    }
+
+    /**
+     * @param counts the number of times each statement was executed, in line order
+     */
+    private FileStats getFileStatsFromScriptData(final int[] counts, final ScriptData data) {
+        final int[] statementIndexes = data.getStatementIndexes();
+        final int[] hits = new int[statementIndexes.length];
+
+        for (int i = 0; i < hits.length; i++) {
+            final int statementIndex = statementIndexes[i];
+            hits[i] = statementIndex >= 0 ? clamp(counts[statementIndex]) : -1;
+        }
+
+        return new FileStats(data.getSourceName(), data.getLineIndex(), hits, data.isSeparateFile());
     }
 
     private void writeRunStats(final RunStats stats) throws IOException {
@@ -359,16 +852,23 @@ public class CoverageGenerator {
 
         FileUtils.mkdir(fileOutputDir.getAbsolutePath());
 
-        final File rawOutput = new File(fileOutputDir, stats.getRawReportName());
         final File htmlOutput = new File(fileOutputDir, stats.getReportName());
 
-        synchronized (stringTemplateGroup) {
-            final LoggingStringTemplateErrorListener listener = new LoggingStringTemplateErrorListener();
+        if (rawReportFormat == RawReportFormat.BINARY) {
+            final File rawOutput = new File(fileOutputDir, stats.getBinaryRawReportName());
 
             logger.info("Writing raw coverage report: {}", rawOutput.getAbsoluteFile());
-            stringTemplateGroup.getInstanceOf("runStatsRaw")
-                    .add("stats", stats)
-                    .write(rawOutput, listener);
+            // in the same order as the LCOV report, so converting one gives exactly the other
+            BinaryCoverageWriter.write(stats.getFileStats(), rawOutput);
+        } else {
+            final File rawOutput = new File(fileOutputDir, stats.getRawReportName());
+
+            logger.info("Writing raw coverage report: {}", rawOutput.getAbsoluteFile());
+            LcovWriter.write(stats.getFileStats(), rawOutput);
+        }
+
+        synchronized (stringTemplateGroup) {
+            final LoggingStringTemplateErrorListener listener = new LoggingStringTemplateErrorListener();
 
             logger.info("Writing html coverage report: {}", htmlOutput.getAbsoluteFile());
             stringTemplateGroup.getInstanceOf("runStats")
@@ -422,6 +922,28 @@ public class CoverageGenerator {
         }
     }
 
+    public void setInstrumentedCodeCacheMaxBytes(final Long instrumentedCodeCacheMaxBytes) {
+        if (instrumentedCodeCacheMaxBytes != null) {
+            Preconditions.checkArgument(instrumentedCodeCacheMaxBytes > 0,
+                    "Instrumented code cache size must be greater than zero");
+            this.instrumentedCodeCacheMaxBytes = instrumentedCodeCacheMaxBytes;
+        }
+    }
+
+    public void setClearInstrumentedCodeCache(final Boolean clearInstrumentedCodeCache) {
+        if (clearInstrumentedCodeCache != null) {
+            this.clearInstrumentedCodeCache = clearInstrumentedCodeCache;
+        }
+    }
+
+    /**
+     * The instrumented code is kept in memory for as long as Saga's classes are loaded, which might be across builds
+     * when running inside a build daemon. Clears it right away.
+     */
+    public static void clearInstrumentedCodeCache() {
+        ScriptInstrumenter.clearCaches();
+    }
+
     public void setOutputStrategy(final String outputStrategy) {
         if (outputStrategy != null) {
             setOutputStrategy(OutputStrategy.valueOf(outputStrategy.toUpperCase()));
@@ -434,6 +956,18 @@ public class CoverageGenerator {
         }
     }
 
+    public void setRawReportFormat(final String rawReportFormat) {
+        if (rawReportFormat != null) {
+            setRawReportFormat(RawReportFormat.valueOf(rawReportFormat.toUpperCase()));
+        }
+    }
+
+    public void setRawReportFormat(final RawReportFormat rawReportFormat) {
+        if (rawReportFormat != null) {
+            this.rawReportFormat = rawReportFormat;
+        }
+    }
+
     public void setThreadCount(final Integer threadCount) {
         if (threadCount != null) {
             Preconditions.checkArgument(threadCount > 0, "Thread count must be greater than zero");
@@ -453,6 +987,32 @@ public class CoverageGenerator {
         }
     }
 
+    public void setTestTimeout(final Long testTimeout) {
+        if (testTimeout != null) {
+            Preconditions.checkArgument(testTimeout >= 0, "Test timeout must not be negative");
+            this.testTimeout = testTimeout;
+        }
+    }
+
+    public void setInstructionBudget(final Long instructionBudget) {
+        if (instructionBudget != null) {
+            Preconditions.checkArgument(instructionBudget >= 0, "Instruction budget must not be negative");
+            this.instructionBudget = instructionBudget;
+        }
+    }
+
+    public void setCompletionPredicate(final String completionPredicate) {
+        if (completionPredicate != null) {
+            this.completionPredicate = completionPredicate;
+        }
+    }
+
+    public void setVirtualClock(final Boolean virtualClock) {
+        if (virtualClock != null) {
+            this.virtualClock = virtualClock;
+        }
+    }
+
     public void setSourcesToPreload(final String sourcesToPreload) {
         if (sourcesToPreload != null) {
             this.sourcesToPreload = sourcesToPreload;
@@ -465,4 +1025,70 @@ public class CoverageGenerator {
         }
     }
 
+    public void setInstrumentationCacheDir(final File instrumentationCacheDir) {
+        if (instrumentationCacheDir != null) {
+            this.instrumentationCacheDir = instrumentationCacheDir;
+        }
+    }
+
+    public void setPreserveSourceFormatting(final Boolean preserveSourceFormatting) {
+        if (preserveSourceFormatting != null) {
+            this.preserveSourceFormatting = preserveSourceFormatting;
+        }
+    }
+
+    public void setLineHitOnly(final Boolean lineHitOnly) {
+        if (lineHitOnly != null) {
+            this.lineHitOnly = lineHitOnly;
+        }
+    }
+
+    public void setMaxTestsPerWebClient(final Integer maxTestsPerWebClient) {
+        if (maxTestsPerWebClient != null) {
+            Preconditions.checkArgument(maxTestsPerWebClient >= 0,
+                    "Maximum number of tests per web client must not be negative");
+            this.maxTestsPerWebClient = maxTestsPerWebClient;
+        }
+    }
+
+    public void setMaxWebClientAllocatedBytes(final Long maxWebClientAllocatedBytes) {
+        if (maxWebClientAllocatedBytes != null) {
+            Preconditions.checkArgument(maxWebClientAllocatedBytes >= 0,
+                    "Maximum number of bytes allocated per web client must not be negative");
+            this.maxWebClientAllocatedBytes = maxWebClientAllocatedBytes;
+        }
+    }
+
+    public void setForkCount(final Integer forkCount) {
+        if (forkCount != null) {
+            Preconditions.checkArgument(forkCount >= 0, "Fork count must not be negative");
+            this.forkCount = forkCount;
+        }
+    }
+
+    public void setForkedWorkerMaxHeap(final String forkedWorkerMaxHeap) {
+        if (forkedWorkerMaxHeap != null) {
+            this.forkedWorkerMaxHeap = forkedWorkerMaxHeap;
+        }
+    }
+
+    public void setForkedWorkerThreadCount(final Integer forkedWorkerThreadCount) {
+        if (forkedWorkerThreadCount != null) {
+            Preconditions.checkArgument(forkedWorkerThreadCount > 0, "Forked worker thread count must be greater than zero");
+            this.forkedWorkerThreadCount = forkedWorkerThreadCount;
+        }
+    }
+
+    public void setCounterStyle(final String counterStyle) {
+        if (counterStyle != null) {
+            setCounterStyle(CounterStyle.valueOf(counterStyle.toUpperCase()));
+        }
+    }
+
+    public void setCounterStyle(final CounterStyle counterStyle) {
+        if (counterStyle != null) {
+            this.counterStyle = counterStyle;
+        }
+    }
+
 }
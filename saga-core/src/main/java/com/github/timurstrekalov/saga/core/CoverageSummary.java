@@ -0,0 +1,130 @@
+package com.github.timurstrekalov.saga.core;
+
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import java.util.*;
+
+/**
+ * The statement counts of a run, added up once per file, directory and for the whole run. The templates render the
+ * same totals over and over again, which used to mean going through all the files (and all of their lines) every time.
+ * <p>
+ * A summary is immutable, so it has to be rebuilt if files are added to the run afterwards.
+ */
+class CoverageSummary {
+
+    private static final Comparator<FileStats> byCoverage = new Comparator<FileStats>() {
+        @Override
+        public int compare(final FileStats s1, final FileStats s2) {
+            return Integer.valueOf(s1.getCoverage()).compareTo(s2.getCoverage());
+        }
+    };
+
+    private final String name;
+    private final List<FileStats> files;
+    private final List<CoverageSummary> directories;
+
+    private final int statements;
+    private final int executed;
+    private final int coverage;
+
+    /**
+     * @param name the name of the directory, or null for the whole run or the files that aren't in any directory
+     * @param files the files in the order given
+     * @param directories the summaries of the directories the files are in, or an empty list for a directory
+     */
+    private CoverageSummary(final String name, final List<FileStats> files, final List<CoverageSummary> directories) {
+        this.name = name;
+        this.files = files;
+        this.directories = directories;
+
+        int statements = 0;
+        int executed = 0;
+
+        for (final FileStats fileStats : files) {
+            statements += fileStats.getStatements();
+            executed += fileStats.getExecuted();
+        }
+
+        this.statements = statements;
+        this.executed = executed;
+        this.coverage = Util.toCoverage(statements, executed);
+    }
+
+    /**
+     * @param fileStats the stats of all files of the run, the files with the same coverage keep their order
+     */
+    static CoverageSummary of(final Collection<FileStats> fileStats) {
+        final List<FileStats> sortedFiles = Lists.newArrayList(fileStats);
+        Collections.sort(sortedFiles, byCoverage);
+
+        final Map<String, List<FileStats>> filesByDirectory = Maps.newTreeMap();
+
+        for (final FileStats file : sortedFiles) {
+            final String directory = Strings.nullToEmpty(file.getParentName());
+            List<FileStats> files = filesByDirectory.get(directory);
+
+            if (files == null) {
+                files = Lists.newArrayList();
+                filesByDirectory.put(directory, files);
+            }
+
+            files.add(file);
+        }
+
+        final List<CoverageSummary> directories = Lists.newArrayListWithCapacity(filesByDirectory.size());
+
+        for (final Map.Entry<String, List<FileStats>> entry : filesByDirectory.entrySet()) {
+            directories.add(new CoverageSummary(Strings.emptyToNull(entry.getKey()),
+                    ImmutableList.copyOf(entry.getValue()), ImmutableList.<CoverageSummary>of()));
+        }
+
+        return new CoverageSummary(null, ImmutableList.copyOf(sortedFiles), ImmutableList.copyOf(directories));
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return the files, sorted by coverage, lowest first
+     */
+    public List<FileStats> getFiles() {
+        return files;
+    }
+
+    /**
+     * @return the directories the files are in, sorted by name, or an empty list if this is a directory itself
+     */
+    public List<CoverageSummary> getDirectories() {
+        return directories;
+    }
+
+    public int getStatements() {
+        return statements;
+    }
+
+    public int getExecuted() {
+        return executed;
+    }
+
+    public int getCoverage() {
+        return coverage;
+    }
+
+    public boolean getHasStatements() {
+        return statements > 0;
+    }
+
+    public String getBarColor() {
+        return Util.getColor(coverage);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s: %d/%d", name, executed, statements);
+    }
+
+}
@@ -1,6 +1,5 @@
 package com.github.timurstrekalov.saga.core;
 
-import com.google.common.base.Function;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Predicate;
 import com.google.common.collect.Collections2;
@@ -8,15 +7,24 @@ import com.google.common.collect.Lists;
 import com.google.common.hash.Hashing;
 
 import java.io.File;
+import java.io.Serializable;
+import java.util.AbstractList;
 import java.util.Collection;
 import java.util.List;
 
-class FileStats {
+/**
+ * The coverage of a single file: the lines of the file, shared with the stats of every other test that has run it,
+ * and the number of times each line was executed, or -1 if it's not executable. The line coverage records are only
+ * created on the fly, when they're asked for, while the statement counts are added up right away, since the hits never
+ * change.
+ */
+class FileStats implements Serializable {
 
     private static final String USER_DIR = new File(System.getProperty("user.dir")).getAbsolutePath();
 
     private final String fullName;
-    private final List<LineCoverageRecord> lineCoverageRecords;
+    private final LineIndex lineIndex;
+    private final int[] hits;
     private final boolean separateFile;
 
     private final String relativeName;
@@ -24,7 +32,21 @@ class FileStats {
     private final String parentName;
     private final String id;
 
+    private final int statements;
+    private final int executed;
+
     FileStats(final String fullName, final List<LineCoverageRecord> lineCoverageRecords, final boolean separateFile) {
+        this(fullName, LineIndex.fromLines(getLines(lineCoverageRecords)), getHits(lineCoverageRecords), separateFile);
+    }
+
+    /**
+     * @param hits the number of times each line of the index was executed, or -1 if it's not executable. Not copied,
+     *             so it mustn't be modified afterwards
+     */
+    FileStats(final String fullName, final LineIndex lineIndex, final int[] hits, final boolean separateFile) {
+        Preconditions.checkArgument(lineIndex.getLineCount() == hits.length,
+                "Got %s lines, but %s hit counts for %s", lineIndex.getLineCount(), hits.length, fullName);
+
         this.fullName = fullName;
         this.separateFile = separateFile;
         this.relativeName = getRelativeName(fullName);
@@ -34,7 +56,45 @@ class FileStats {
         parentName = file.getParent();
 
         this.id = generateId();
-        this.lineCoverageRecords = lineCoverageRecords;
+        this.lineIndex = lineIndex;
+        this.hits = hits;
+
+        int statements = 0;
+        int executed = 0;
+
+        for (final int timesExecuted : hits) {
+            if (timesExecuted > -1) {
+                statements++;
+            }
+
+            if (timesExecuted > 0) {
+                executed++;
+            }
+        }
+
+        this.statements = statements;
+        this.executed = executed;
+    }
+
+    private static List<String> getLines(final List<LineCoverageRecord> lineCoverageRecords) {
+        final List<String> lines = Lists.newArrayListWithCapacity(lineCoverageRecords.size());
+
+        for (final LineCoverageRecord record : lineCoverageRecords) {
+            lines.add(record.getLine());
+        }
+
+        return lines;
+    }
+
+    private static int[] getHits(final List<LineCoverageRecord> lineCoverageRecords) {
+        final int[] hits = new int[lineCoverageRecords.size()];
+
+        int i = 0;
+        for (final LineCoverageRecord record : lineCoverageRecords) {
+            hits[i++] = record.getTimesExecuted();
+        }
+
+        return hits;
     }
 
     private String getRelativeName(final String fullName) {
@@ -45,12 +105,37 @@ class FileStats {
         return Hashing.md5().hashString(fullName).toString();
     }
 
+    LineIndex getLineIndex() {
+        return lineIndex;
+    }
+
+    /**
+     * @return the number of times each line was executed, or -1 if it's not executable. Not a copy, so it mustn't be
+     * modified
+     */
+    int[] getHits() {
+        return hits;
+    }
+
+    /**
+     * @return a view that creates the records as they're read
+     */
     public List<LineCoverageRecord> getLineCoverageRecords() {
-        return lineCoverageRecords;
+        return new AbstractList<LineCoverageRecord>() {
+            @Override
+            public LineCoverageRecord get(final int index) {
+                return new LineCoverageRecord(index + 1, hits[index], lineIndex.getLine(index));
+            }
+
+            @Override
+            public int size() {
+                return hits.length;
+            }
+        };
     }
 
     public Collection<LineCoverageRecord> getExecutableLineCoverageRecords() {
-        return Collections2.filter(lineCoverageRecords, new Predicate<LineCoverageRecord>() {
+        return Collections2.filter(getLineCoverageRecords(), new Predicate<LineCoverageRecord>() {
             @Override
             public boolean apply(final LineCoverageRecord record) {
                 return record.isExecutable();
@@ -59,21 +144,11 @@ class FileStats {
     }
 
     public int getStatements() {
-        return Collections2.filter(lineCoverageRecords, new Predicate<LineCoverageRecord>() {
-            @Override
-            public boolean apply(final LineCoverageRecord input) {
-                return input.isExecutable();
-            }
-        }).size();
+        return statements;
     }
 
     public int getExecuted() {
-        return Util.sum(lineCoverageRecords, new Function<LineCoverageRecord, Integer>() {
-            @Override
-            public Integer apply(final LineCoverageRecord input) {
-                return input.getTimesExecuted() > 0 ? 1 : 0;
-            }
-        });
+        return executed;
     }
 
     public int getCoverage() {
@@ -88,27 +163,35 @@ class FileStats {
         return Util.getColor(getCoverage());
     }
 
+    /**
+     * @return the stats of the same file with different hit counts
+     */
+    FileStats withHits(final int[] hits) {
+        return new FileStats(fullName, lineIndex, hits, separateFile);
+    }
+
     static FileStats merge(final FileStats s1, final FileStats s2) {
-        final List<LineCoverageRecord> r1 = s1.getLineCoverageRecords();
-        final List<LineCoverageRecord> r2 = s2.getLineCoverageRecords();
+        return merge(s1, s2, false);
+    }
 
+    /**
+     * Same as merging every line coverage record of both stats with
+     * {@link LineCoverageRecord#merge(LineCoverageRecord, LineCoverageRecord, boolean)}, without creating them
+     */
+    static FileStats merge(final FileStats s1, final FileStats s2, final boolean lineHitOnly) {
         Preconditions.checkArgument(s1.fullName.equals(s2.fullName), "Got different file names: %s and %s", s1, s2);
-        Preconditions.checkArgument(r1.size() == r2.size(), "Got different numbers of line coverage records: %s and %s", s1, s2);
+        Preconditions.checkArgument(s1.hits.length == s2.hits.length,
+                "Got different numbers of line coverage records: %s and %s", s1, s2);
+        Preconditions.checkArgument(s1.lineIndex.hasSameLines(s2.lineIndex), "Got different lines: %s and %s", s1, s2);
 
-        final List<LineCoverageRecord> mergedRecords = Lists.newLinkedList();
+        final int[] mergedHits = new int[s1.hits.length];
 
-        for (int i = 0; i < r1.size(); i++) {
-            final LineCoverageRecord l1 = r1.get(i);
-            final LineCoverageRecord l2 = r2.get(i);
-
-            try {
-                mergedRecords.add(LineCoverageRecord.merge(l1, l2));
-            } catch (final Exception e) {
-                throw new RuntimeException("Error merging " + s1.fullName + " and " + s2.fullName, e);
-            }
+        for (int i = 0; i < mergedHits.length; i++) {
+            final int timesExecuted = s1.hits[i] == -1 ? -1 : s1.hits[i] + s2.hits[i];
+            mergedHits[i] = lineHitOnly ? Math.min(timesExecuted, 1) : timesExecuted;
         }
 
-        return new FileStats(s1.fullName, mergedRecords, s1.separateFile);
+        return new FileStats(s1.fullName, s1.lineIndex, mergedHits, s1.separateFile);
     }
 
     public String getFileName() {
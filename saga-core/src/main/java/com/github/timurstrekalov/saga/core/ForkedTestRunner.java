@@ -0,0 +1,430 @@
+package com.github.timurstrekalov.saga.core;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.net.*;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Splits the tests between a number of worker JVMs, each of which runs its share the same way the tests are run
+ * in-process, so that HtmlUnit doesn't have to share a single heap and set of locks between too many threads. The
+ * workers connect back to a local socket, identify themselves with a random token passed on their command line, and
+ * stream the stats of every test back as soon as it finishes.
+ *
+ * @see ForkedWorker
+ */
+class ForkedTestRunner {
+
+    private static final Logger logger = LoggerFactory.getLogger(ForkedTestRunner.class);
+
+    private static final int CONNECT_TIMEOUT = 60 * 1000;
+    private static final int ACCEPT_POLL_INTERVAL = 1000;
+    private static final int HANDSHAKE_TIMEOUT = 5 * 1000;
+    private static final int MAX_RETRIES = 1;
+
+    /**
+     * The length of the hex tokens the workers identify themselves with
+     */
+    static final int TOKEN_LENGTH = 32;
+    static final Charset TOKEN_CHARSET = Charsets.US_ASCII;
+
+    private static final SecureRandom random = new SecureRandom();
+    private static final AtomicInteger nextWorkerId = new AtomicInteger();
+
+    private final CoverageGenerator generator;
+    private final int forkCount;
+    private final String maxHeap;
+
+    ForkedTestRunner(final CoverageGenerator generator, final int forkCount, final String maxHeap) {
+        this.generator = generator;
+        this.forkCount = forkCount;
+        this.maxHeap = maxHeap;
+    }
+
+    /**
+     * Runs the tests in the workers, calling the listener from one thread per worker. The tests of a worker that fails
+     * to connect or dies before it's done are run again in new workers, and if that fails too, the run fails with the
+     * names of the tests that didn't get to run, rather than silently leaving them out of the total.
+     */
+    void run(final List<File> tests, final RunStatsListener runStatsListener) throws IOException {
+        List<File> missingTests = tests;
+
+        for (int attempt = 0; attempt <= MAX_RETRIES && !missingTests.isEmpty(); attempt++) {
+            if (attempt > 0) {
+                logger.warn("Running the {} tests left over by failed workers again in new workers",
+                        missingTests.size());
+            }
+
+            missingTests = runShards(shard(missingTests, forkCount), runStatsListener);
+        }
+
+        if (!missingTests.isEmpty()) {
+            throw new IOException(String.format("Workers failed before running %d tests:%n\t%s", missingTests.size(),
+                    StringUtils.join(missingTests, "\n\t")));
+        }
+    }
+
+    /**
+     * @return the tests of the workers that have failed, except the ones whose stats made it back before they did
+     */
+    private List<File> runShards(final List<List<File>> shards, final RunStatsListener runStatsListener)
+            throws IOException {
+        final ServerSocket serverSocket = new ServerSocket(0, shards.size(), InetAddress.getByName(null));
+        final List<Process> workers = Lists.newArrayListWithCapacity(shards.size());
+        final List<String> tokens = Lists.newArrayListWithCapacity(shards.size());
+        final int[] workerIds = new int[shards.size()];
+        final ShardRunner[] shardRunners = new ShardRunner[shards.size()];
+        final Future<?>[] futures = new Future<?>[shards.size()];
+        final ExecutorService executorService = Executors.newFixedThreadPool(shards.size() * 2);
+
+        try {
+            for (int i = 0; i < shards.size(); i++) {
+                final String token = newToken();
+                final Process worker = startWorker(serverSocket.getLocalPort(), token);
+
+                workers.add(worker);
+                tokens.add(token);
+                workerIds[i] = nextWorkerId.incrementAndGet();
+                executorService.submit(new OutputCopier(worker.getInputStream(), workerIds[i]));
+            }
+
+            serverSocket.setSoTimeout(ACCEPT_POLL_INTERVAL);
+            final long connectDeadline = System.currentTimeMillis() + CONNECT_TIMEOUT;
+            int connected = 0;
+
+            while (connected < shards.size() && System.currentTimeMillis() < connectDeadline
+                    && isAnyWorkerWaiting(workers, shardRunners)) {
+                final Socket socket;
+
+                try {
+                    socket = serverSocket.accept();
+                } catch (final SocketTimeoutException e) {
+                    continue;
+                }
+
+                final int index = authenticate(socket, tokens, shardRunners);
+
+                if (index >= 0) {
+                    shardRunners[index] = new ShardRunner(socket, shards.get(index), runStatsListener);
+                    futures[index] = executorService.submit(shardRunners[index]);
+                    connected++;
+                }
+            }
+
+            final List<File> missingTests = Lists.newArrayList();
+
+            for (int i = 0; i < shards.size(); i++) {
+                if (futures[i] == null) {
+                    logger.warn("Worker #{} didn't connect", workerIds[i]);
+                    missingTests.addAll(shards.get(i));
+                    continue;
+                }
+
+                try {
+                    futures[i].get();
+                    logger.debug("Got stats for all {} tests from worker #{}", shards.get(i).size(), workerIds[i]);
+                } catch (final ExecutionException e) {
+                    logger.warn("Error getting stats from worker #{}: {}", workerIds[i], e.getCause().getMessage());
+                    logger.debug(e.getMessage(), e);
+                    missingTests.addAll(shardRunners[i].getMissingTests());
+                }
+            }
+
+            for (int i = 0; i < workers.size(); i++) {
+                final int exitValue = workers.get(i).waitFor();
+
+                if (exitValue != 0) {
+                    logger.warn("Worker #{} exited with code {}", workerIds[i], exitValue);
+                }
+            }
+
+            return missingTests;
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for the workers");
+        } finally {
+            for (final Process worker : workers) {
+                worker.destroy();
+            }
+
+            executorService.shutdownNow();
+            serverSocket.close();
+        }
+    }
+
+    /**
+     * Reads the token a worker sends before anything else, so that only the workers started by this run get sent the
+     * settings, and get to send back objects to deserialize
+     *
+     * @return the index of the worker the token belongs to, or -1 if the connection has been rejected
+     */
+    private static int authenticate(final Socket socket, final List<String> tokens, final ShardRunner[] shardRunners)
+            throws IOException {
+        try {
+            socket.setSoTimeout(HANDSHAKE_TIMEOUT);
+
+            final DataInputStream in = new DataInputStream(socket.getInputStream());
+            final byte[] token = new byte[TOKEN_LENGTH];
+            in.readFully(token);
+
+            socket.setSoTimeout(0);
+
+            for (int i = 0; i < tokens.size(); i++) {
+                if (shardRunners[i] == null && MessageDigest.isEqual(token, tokens.get(i).getBytes(TOKEN_CHARSET))) {
+                    return i;
+                }
+            }
+
+            logger.warn("Rejected a connection from {} that didn't identify as a worker", socket.getRemoteSocketAddress());
+        } catch (final IOException e) {
+            logger.warn("Rejected a connection from {}: {}", socket.getRemoteSocketAddress(), e.getMessage());
+        }
+
+        socket.close();
+        return -1;
+    }
+
+    /**
+     * @return whether any of the workers that haven't connected yet is still alive
+     */
+    private static boolean isAnyWorkerWaiting(final List<Process> workers, final ShardRunner[] shardRunners) {
+        for (int i = 0; i < workers.size(); i++) {
+            if (shardRunners[i] == null && isAlive(workers.get(i))) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private static boolean isAlive(final Process process) {
+        try {
+            process.exitValue();
+            return false;
+        } catch (final IllegalThreadStateException e) {
+            return true;
+        }
+    }
+
+    private static String newToken() {
+        final byte[] bytes = new byte[TOKEN_LENGTH / 2];
+        random.nextBytes(bytes);
+
+        final StringBuilder token = new StringBuilder(TOKEN_LENGTH);
+
+        for (final byte b : bytes) {
+            token.append(String.format("%02x", b & 0xFF));
+        }
+
+        return token.toString();
+    }
+
+    /**
+     * Deals the tests out round-robin, so that tests from the same directory, which tend to take similar amounts of
+     * time, are spread across the workers
+     */
+    static List<List<File>> shard(final List<File> tests, final int shardCount) {
+        final List<List<File>> shards = Lists.newArrayListWithCapacity(shardCount);
+
+        for (int i = 0; i < Math.min(shardCount, tests.size()); i++) {
+            shards.add(Lists.<File>newArrayList());
+        }
+
+        for (int i = 0; i < tests.size(); i++) {
+            shards.get(i % shards.size()).add(tests.get(i));
+        }
+
+        return shards;
+    }
+
+    private Process startWorker(final int port, final String token) throws IOException {
+        final List<String> command = Lists.newArrayList();
+
+        command.add(new File(new File(System.getProperty("java.home"), "bin"), "java").getAbsolutePath());
+
+        if (maxHeap != null) {
+            command.add("-Xmx" + maxHeap);
+        }
+
+        command.add("-cp");
+        command.add(getClassPath());
+        command.add(ForkedWorker.class.getName());
+        command.add(String.valueOf(port));
+        command.add(token);
+
+        return new ProcessBuilder(command)
+                .directory(new File(System.getProperty("user.dir")))
+                .redirectErrorStream(true)
+                .start();
+    }
+
+    /**
+     * Inside a build tool, Saga's classes usually aren't loaded from the JVM's class path, so the class path is pieced
+     * together from the class loaders instead
+     */
+    private static String getClassPath() {
+        final Set<String> entries = Sets.newLinkedHashSet();
+
+        for (ClassLoader cl = ForkedTestRunner.class.getClassLoader(); cl != null; cl = cl.getParent()) {
+            if (cl instanceof URLClassLoader) {
+                for (final URL url : ((URLClassLoader) cl).getURLs()) {
+                    if ("file".equals(url.getProtocol())) {
+                        try {
+                            entries.add(new File(url.toURI()).getAbsolutePath());
+                        } catch (final URISyntaxException e) {
+                            entries.add(url.getPath());
+                        }
+                    }
+                }
+            }
+        }
+
+        for (final String entry : System.getProperty("java.class.path").split(File.pathSeparator)) {
+            if (entry.length() > 0) {
+                entries.add(new File(entry).getAbsolutePath());
+            }
+        }
+
+        return StringUtils.join(entries, File.pathSeparator);
+    }
+
+    /**
+     * Sends a worker its settings and share of the tests, and hands the stats it sends back to the listener, keeping
+     * track of the tests they're for in case the worker fails halfway
+     */
+    private class ShardRunner implements Callable<Void> {
+
+        private final Socket socket;
+        private final List<File> shard;
+        private final RunStatsListener runStatsListener;
+        private final Set<File> finishedTests = Sets.newHashSet();
+
+        private ShardRunner(final Socket socket, final List<File> shard, final RunStatsListener runStatsListener) {
+            this.socket = socket;
+            this.shard = shard;
+            this.runStatsListener = runStatsListener;
+        }
+
+        /**
+         * @return the tests of the shard that no stats have been received for, which includes the ones that didn't
+         * actually run, since the worker doesn't send anything for those
+         */
+        private synchronized List<File> getMissingTests() {
+            final List<File> missingTests = Lists.newArrayList();
+
+            for (final File test : shard) {
+                if (!finishedTests.contains(test)) {
+                    missingTests.add(test);
+                }
+            }
+
+            return missingTests;
+        }
+
+        @Override
+        public Void call() throws IOException, ClassNotFoundException {
+            try {
+                final ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+
+                out.writeObject(generator);
+                out.writeObject(shard);
+                out.writeInt(forkCount);
+                out.flush();
+
+                final ObjectInputStream in = new StatsInputStream(new BufferedInputStream(socket.getInputStream()));
+
+                RunStats runStats;
+
+                while ((runStats = (RunStats) in.readObject()) != null) {
+                    runStatsListener.testFinished(runStats);
+
+                    synchronized (this) {
+                        finishedTests.add(runStats.test);
+                    }
+                }
+
+                return null;
+            } finally {
+                socket.close();
+            }
+        }
+
+    }
+
+    /**
+     * Only lets the classes of the stats be deserialized, so that nothing else a worker sends can get instantiated in
+     * this JVM
+     */
+    static class StatsInputStream extends ObjectInputStream {
+
+        private static final Set<String> allowedClassNames = ImmutableSet.of(
+                RunStats.class.getName(),
+                FileStats.class.getName(),
+                LineIndex.class.getName(),
+                File.class.getName(),
+                String.class.getName(),
+                TreeMap.class.getName(),
+                int[].class.getName());
+
+        StatsInputStream(final InputStream in) throws IOException {
+            super(in);
+        }
+
+        @Override
+        protected Class<?> resolveClass(final ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+            if (!allowedClassNames.contains(desc.getName())) {
+                throw new InvalidClassException(desc.getName(), "Not allowed in the stats sent by a worker");
+            }
+
+            return super.resolveClass(desc);
+        }
+
+    }
+
+    /**
+     * Logs the output of a worker a line at a time, prefixed with the worker's id so that workers can be told apart
+     */
+    private static class OutputCopier implements Callable<Void> {
+
+        private final InputStream in;
+        private final int workerId;
+
+        private OutputCopier(final InputStream in, final int workerId) {
+            this.in = in;
+            this.workerId = workerId;
+        }
+
+        @Override
+        public Void call() throws IOException {
+            final BufferedReader reader = new BufferedReader(new InputStreamReader(in, Charset.defaultCharset()));
+
+            try {
+                String line;
+
+                while ((line = reader.readLine()) != null) {
+                    logger.info("[worker #{}] {}", workerId, line);
+                }
+            } finally {
+                reader.close();
+            }
+
+            return null;
+        }
+
+    }
+
+}
@@ -0,0 +1,62 @@
+package com.github.timurstrekalov.saga.core;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.List;
+
+/**
+ * The entry point of a worker JVM started by {@link ForkedTestRunner}. Connects back to the parent, identifies itself
+ * with the token it has been given, reads the generator and the tests to run from the parent and writes the stats of
+ * every test back as soon as it finishes, followed by a null.
+ */
+class ForkedWorker {
+
+    public static void main(final String[] args) {
+        try {
+            run(Integer.parseInt(args[0]), args[1]);
+            System.exit(0);
+        } catch (final Throwable t) {
+            t.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void run(final int port, final String token) throws IOException, ClassNotFoundException {
+        final Socket socket = new Socket(InetAddress.getByName(null), port);
+
+        try {
+            socket.getOutputStream().write(token.getBytes(ForkedTestRunner.TOKEN_CHARSET));
+            socket.getOutputStream().flush();
+
+            final ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(socket.getInputStream()));
+
+            final CoverageGenerator generator = (CoverageGenerator) in.readObject();
+            final List<File> tests = (List<File>) in.readObject();
+            final int forkCount = in.readInt();
+
+            final ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+
+            generator.runInWorker(tests, forkCount, new RunStatsListener() {
+                @Override
+                public void testFinished(final RunStats runStats) throws IOException {
+                    if (runStats != RunStats.EMPTY) {
+                        synchronized (out) {
+                            out.writeObject(runStats);
+                            // the stats are never written twice, so don't let the stream hold on to them
+                            out.reset();
+                            out.flush();
+                        }
+                    }
+                }
+            });
+
+            out.writeObject(null);
+            out.flush();
+        } finally {
+            socket.close();
+        }
+    }
+
+}
@@ -0,0 +1,156 @@
+package com.github.timurstrekalov.saga.core;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Closeables;
+import org.codehaus.plexus.util.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * On-disk cache of instrumented scripts that survives between runs. Each entry holds the instrumented source and the
+ * statement table of a {@link ScriptData}, stored under a hash of the original source, the instrumenter settings that
+ * affect the output and the cache format version, so warm runs don't have to parse unchanged scripts at all.
+ */
+class InstrumentationCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(InstrumentationCache.class);
+
+    private static final int MAGIC = 0x53414741;
+
+    /**
+     * Bump whenever the instrumented output or the entry layout changes, so stale entries are never picked up
+     */
+    private static final int FORMAT_VERSION = 2;
+
+    private final File directory;
+    private final String version;
+
+    private final AtomicInteger hits = new AtomicInteger();
+    private final AtomicInteger misses = new AtomicInteger();
+
+    InstrumentationCache(final File directory, final String appVersion) {
+        this.directory = directory;
+        this.version = appVersion + ":" + FORMAT_VERSION;
+
+        FileUtils.mkdir(directory.getAbsolutePath());
+    }
+
+    String keyFor(final String... parts) {
+        final Hasher hasher = Hashing.sha1().newHasher().putString(version);
+
+        for (final String part : parts) {
+            hasher.putInt(part.length()).putString(part);
+        }
+
+        return hasher.hash().toString();
+    }
+
+    /**
+     * @return the cached script data, or null if there's no (valid) entry for the key
+     */
+    ScriptData get(final String key, final String sourceName, final String sourceCode, final boolean separateFile) {
+        final File file = getFile(key);
+
+        if (!file.isFile()) {
+            misses.incrementAndGet();
+            return null;
+        }
+
+        DataInputStream in = null;
+
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+
+            if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION) {
+                throw new IOException("Unexpected cache entry header");
+            }
+
+            final ScriptData data = new ScriptData(sourceName, sourceCode, separateFile);
+
+            final int numberOfStatements = in.readInt();
+            for (int i = 0; i < numberOfStatements; i++) {
+                data.addExecutableLine(in.readInt(), in.readInt());
+            }
+
+            final byte[] instrumentedSourceCode = new byte[in.readInt()];
+            in.readFully(instrumentedSourceCode);
+
+            data.setInstrumentedSourceCode(new String(instrumentedSourceCode, Charsets.UTF_8));
+
+            hits.incrementAndGet();
+            return data;
+        } catch (final IOException e) {
+            logger.debug("Discarding unreadable cache entry {}: {}", file, e.getMessage());
+            misses.incrementAndGet();
+            return null;
+        } finally {
+            Closeables.closeQuietly(in);
+        }
+    }
+
+    void put(final String key, final ScriptData data) {
+        final File file = getFile(key);
+        final File parent = file.getParentFile();
+
+        DataOutputStream out = null;
+        File tempFile = null;
+
+        try {
+            FileUtils.mkdir(parent.getAbsolutePath());
+
+            // write to a temporary file first so that concurrent runs never see a partially written entry
+            tempFile = File.createTempFile(key, ".tmp", parent);
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+
+            out.writeInt(data.getNumberOfStatements());
+            for (final Integer lineNr : data.getLineNumbersOfAllStatements()) {
+                out.writeInt(lineNr);
+                out.writeInt(data.getStatementLength(lineNr));
+            }
+
+            final byte[] instrumentedSourceCode = data.getInstrumentedSourceCode().getBytes(Charsets.UTF_8);
+            out.writeInt(instrumentedSourceCode.length);
+            out.write(instrumentedSourceCode);
+
+            out.close();
+            out = null;
+
+            if (!tempFile.renameTo(file) && !file.isFile()) {
+                throw new IOException("Could not rename " + tempFile + " to " + file);
+            }
+        } catch (final IOException e) {
+            logger.warn("Error writing cache entry {}: {}", file, e.getMessage());
+        } finally {
+            Closeables.closeQuietly(out);
+
+            if (tempFile != null && tempFile.exists()) {
+                tempFile.delete();
+            }
+        }
+    }
+
+    private File getFile(final String key) {
+        return new File(new File(directory, key.substring(0, 2)), key);
+    }
+
+    int getHits() {
+        return hits.get();
+    }
+
+    int getMisses() {
+        return misses.get();
+    }
+
+    File getDirectory() {
+        return directory;
+    }
+
+}
@@ -0,0 +1,112 @@
+package com.github.timurstrekalov.saga.core;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.cache.Weigher;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-memory cache of instrumented scripts, bounded by the approximate number of bytes they take up. The least
+ * recently used scripts are evicted first. It lives as long as the class does, which, when Saga runs inside a
+ * long-lived build daemon, means across builds.
+ */
+class InstrumentedScriptCache {
+
+    static final long DEFAULT_MAX_BYTES = 256L * 1024 * 1024;
+
+    /**
+     * Rough overhead of a statement table entry (a tree map entry with two boxed integers)
+     */
+    private static final int BYTES_PER_STATEMENT = 64;
+
+    private static final Weigher<String, ScriptData> weigher = new Weigher<String, ScriptData>() {
+        @Override
+        public int weigh(final String key, final ScriptData data) {
+            return InstrumentedScriptCache.weigh(data);
+        }
+    };
+
+    private final AtomicLong bytes = new AtomicLong();
+
+    private final RemovalListener<String, ScriptData> removalListener = new RemovalListener<String, ScriptData>() {
+        @Override
+        public void onRemoval(final RemovalNotification<String, ScriptData> notification) {
+            bytes.addAndGet(-weigh(notification.getValue()));
+        }
+    };
+
+    private volatile Cache<String, ScriptData> cache;
+    private long maxBytes;
+
+    InstrumentedScriptCache(final long maxBytes) {
+        setMaxBytes(maxBytes);
+    }
+
+    /**
+     * Starts over with an empty cache if the limit is different from the current one
+     */
+    synchronized void setMaxBytes(final long maxBytes) {
+        if (cache != null && this.maxBytes == maxBytes) {
+            return;
+        }
+
+        if (cache != null) {
+            cache.invalidateAll();
+        }
+
+        this.maxBytes = maxBytes;
+
+        cache = CacheBuilder.newBuilder()
+                .maximumWeight(maxBytes)
+                .weigher(weigher)
+                .removalListener(removalListener)
+                .recordStats()
+                .build();
+    }
+
+    ScriptData get(final String key) {
+        return cache.getIfPresent(key);
+    }
+
+    /**
+     * @return the script data already cached under the key, or null if the given one has been cached
+     */
+    ScriptData putIfAbsent(final String key, final ScriptData data) {
+        final ScriptData existing = cache.asMap().putIfAbsent(key, data);
+
+        if (existing == null) {
+            bytes.addAndGet(weigh(data));
+        }
+
+        return existing;
+    }
+
+    void clear() {
+        cache.invalidateAll();
+    }
+
+    long size() {
+        return cache.size();
+    }
+
+    long getBytes() {
+        return bytes.get();
+    }
+
+    CacheStats stats() {
+        return cache.stats();
+    }
+
+    private static int weigh(final ScriptData data) {
+        final long weight = 2L * data.getSourceCode().length()
+                + 2L * data.getInstrumentedSourceCode().length()
+                + (long) BYTES_PER_STATEMENT * data.getNumberOfStatements();
+
+        return (int) Math.min(weight, Integer.MAX_VALUE);
+    }
+
+}
@@ -0,0 +1,61 @@
+package com.github.timurstrekalov.saga.core;
+
+import com.google.common.io.Closeables;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Turns a binary raw coverage file into the same LCOV tracefile that {@link RawReportFormat#LCOV} would have produced
+ * for the same run, for tools that only understand LCOV. Both reports list the files in the same order, and the scripts
+ * inline in HTML pages, which only the binary report has, are left out. E.g.
+ *
+ * <pre>
+ * java -cp saga-core.jar com.github.timurstrekalov.saga.core.LcovConverter total-coverage.bin total-coverage.dat
+ * </pre>
+ */
+public final class LcovConverter {
+
+    private LcovConverter() {
+    }
+
+    public static void main(final String[] args) throws IOException {
+        if (args.length != 2) {
+            System.err.println("Usage: LcovConverter <binary coverage file> <lcov file>");
+            System.exit(1);
+        }
+
+        convert(new File(args[0]), new File(args[1]));
+    }
+
+    public static void convert(final File binaryFile, final File lcovFile) throws IOException {
+        final BinaryCoverageReader reader = BinaryCoverageReader.open(binaryFile);
+
+        try {
+            final FileOutputStream out = new FileOutputStream(lcovFile);
+
+            try {
+                final LcovWriter writer = new LcovWriter(out.getChannel());
+                convert(reader, writer);
+                writer.close();
+            } finally {
+                Closeables.closeQuietly(out);
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Only the separate files are written, like in the LCOV raw report
+     */
+    static void convert(final BinaryCoverageReader reader, final LcovWriter writer) throws IOException {
+        for (int i = 0; i < reader.getFileCount(); i++) {
+            if (reader.isSeparateFile(i)) {
+                writer.writeRecord(reader.getFileName(i), reader.readHits(i));
+            }
+        }
+    }
+
+}
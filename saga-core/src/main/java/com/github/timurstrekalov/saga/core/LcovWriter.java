@@ -0,0 +1,160 @@
+package com.github.timurstrekalov.saga.core;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Closeables;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Collection;
+
+/**
+ * Writes LCOV tracefiles straight from the hits of the files into a buffer, which is flushed to the channel whenever
+ * it fills up. Produces the same SF/DA/end_of_record records the runStatsRaw template used to, without creating a
+ * line coverage record or a string per line, and without having to hold the lock of the template group.
+ * <p>
+ * Not thread-safe, but every report gets its own writer, so reports can be written from several threads.
+ */
+final class LcovWriter implements Closeable {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * The longest line the writer produces without checking the space left in between: "DA:" two ints "," "\n"
+     */
+    private static final int MAX_DATA_LINE_LENGTH = 3 + 2 * 11 + 2;
+
+    private static final byte[] SOURCE_FILE = ascii("SF:");
+    private static final byte[] LINE_DATA = ascii("DA:");
+    private static final byte[] END_OF_RECORD = ascii("end_of_record\n");
+
+    private final WritableByteChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+
+    LcovWriter(final WritableByteChannel channel) {
+        this.channel = channel;
+    }
+
+    /**
+     * Only the separate files are written, the scripts inline in HTML pages have no file for LCOV tools to refer to
+     */
+    static void write(final Collection<FileStats> fileStats, final File file) throws IOException {
+        final FileOutputStream out = new FileOutputStream(file);
+
+        try {
+            final LcovWriter writer = new LcovWriter(out.getChannel());
+
+            for (final FileStats stats : fileStats) {
+                if (stats.isSeparateFile()) {
+                    writer.writeRecord(stats.getFullName(), stats.getHits());
+                }
+            }
+
+            writer.close();
+        } finally {
+            Closeables.closeQuietly(out);
+        }
+    }
+
+    /**
+     * @param hits the number of times each line was executed, or -1 for the lines that aren't executable, which are
+     * left out
+     */
+    void writeRecord(final String fileName, final int[] hits) throws IOException {
+        put(SOURCE_FILE);
+        put(fileName.getBytes(Charsets.UTF_8));
+        put((byte) '\n');
+
+        for (int i = 0; i < hits.length; i++) {
+            if (hits[i] > -1) {
+                if (buffer.remaining() < MAX_DATA_LINE_LENGTH) {
+                    flush();
+                }
+
+                buffer.put(LINE_DATA);
+                putInt(i + 1);
+                buffer.put((byte) ',');
+                putInt(hits[i]);
+                buffer.put((byte) '\n');
+            }
+        }
+
+        put(END_OF_RECORD);
+    }
+
+    /**
+     * Flushes the buffer and closes the channel
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            channel.close();
+        }
+    }
+
+    private void put(final byte b) throws IOException {
+        if (!buffer.hasRemaining()) {
+            flush();
+        }
+
+        buffer.put(b);
+    }
+
+    private void put(final byte[] bytes) throws IOException {
+        if (buffer.remaining() < bytes.length) {
+            flush();
+        }
+
+        if (bytes.length > buffer.capacity()) {
+            final ByteBuffer src = ByteBuffer.wrap(bytes);
+
+            while (src.hasRemaining()) {
+                channel.write(src);
+            }
+        } else {
+            buffer.put(bytes);
+        }
+    }
+
+    /**
+     * Writes the decimal digits of a non-negative int without going through a string, the caller having made sure
+     * there's room for them
+     */
+    private void putInt(final int value) {
+        if (value < 10) {
+            buffer.put((byte) ('0' + value));
+            return;
+        }
+
+        int divisor = 10;
+
+        while (divisor <= value / 10) {
+            divisor *= 10;
+        }
+
+        for (int remaining = value; divisor > 0; divisor /= 10) {
+            buffer.put((byte) ('0' + remaining / divisor));
+            remaining %= divisor;
+        }
+    }
+
+    private void flush() throws IOException {
+        buffer.flip();
+
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+
+        buffer.clear();
+    }
+
+    private static byte[] ascii(final String s) {
+        return s.getBytes(Charsets.US_ASCII);
+    }
+
+}
@@ -0,0 +1,103 @@
+package com.github.timurstrekalov.saga.core;
+
+import com.gargoylesoftware.htmlunit.WebClient;
+import com.gargoylesoftware.htmlunit.javascript.HtmlUnitContextFactory;
+import net.sourceforge.htmlunit.corejs.javascript.Context;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stops the scripts of a test once it runs past its deadline or executes more instructions than it's allowed to.
+ * HtmlUnit's context factory already aborts scripts that run for longer than the client's JavaScript timeout, by
+ * throwing a TimeoutError from the instruction observer, which HtmlUnit reports and recovers from like any other
+ * script error. Setting the timeout to next to nothing once a limit has been hit makes it abort the script the next
+ * time the observer is called, so the page and whatever coverage has been recorded up to that point survive. The
+ * timeout is set through {@link #setTimeout(long)} rather than by overriding the getter, because HtmlUnit's contexts
+ * read the field directly.
+ */
+class LimitingContextFactory extends HtmlUnitContextFactory {
+
+    private static final int INSTRUCTION_OBSERVER_THRESHOLD = 10000;
+
+    private final AtomicLong instructionCount = new AtomicLong();
+
+    private volatile long deadline;
+    private volatile long instructionBudget;
+    private volatile boolean limitExceeded;
+    private volatile long timeoutBeforeLimiting;
+
+    LimitingContextFactory(final WebClient webClient) {
+        super(webClient);
+    }
+
+    /**
+     * Starts counting from scratch for a new test
+     *
+     * @param deadline the time after which scripts are aborted, in milliseconds since the epoch, 0 for none
+     * @param instructionBudget the number of instructions after which scripts are aborted, 0 for no limit
+     */
+    synchronized void startLimiting(final long deadline, final long instructionBudget) {
+        stopLimiting();
+
+        instructionCount.set(0);
+        limitExceeded = false;
+        timeoutBeforeLimiting = getTimeout();
+
+        this.deadline = deadline;
+        this.instructionBudget = instructionBudget;
+    }
+
+    /**
+     * Lets scripts run freely again, e.g. to collect the coverage data of a test that has hit a limit
+     */
+    synchronized void stopLimiting() {
+        if (limitExceeded && isLimiting()) {
+            setTimeout(timeoutBeforeLimiting);
+        }
+
+        deadline = 0;
+        instructionBudget = 0;
+    }
+
+    boolean isLimitExceeded() {
+        return limitExceeded;
+    }
+
+    long getInstructionCount() {
+        return instructionCount.get();
+    }
+
+    @Override
+    protected Context makeContext() {
+        final Context cx = super.makeContext();
+        cx.setInstructionObserverThreshold(INSTRUCTION_OBSERVER_THRESHOLD);
+        return cx;
+    }
+
+    @Override
+    protected void observeInstructionCount(final Context cx, final int instructionCount) {
+        final long totalInstructionCount = this.instructionCount.addAndGet(instructionCount);
+
+        if (!limitExceeded && ((deadline > 0 && System.currentTimeMillis() >= deadline)
+                || (instructionBudget > 0 && totalInstructionCount >= instructionBudget))) {
+            exceedLimit();
+        }
+
+        super.observeInstructionCount(cx, instructionCount);
+    }
+
+    /**
+     * Checks again under the lock, so that a script thread can't set the timeout after limiting has stopped
+     */
+    private synchronized void exceedLimit() {
+        if (!limitExceeded && isLimiting()) {
+            limitExceeded = true;
+            setTimeout(1);
+        }
+    }
+
+    private boolean isLimiting() {
+        return deadline > 0 || instructionBudget > 0;
+    }
+
+}
@@ -5,7 +5,9 @@ import org.apache.commons.lang.StringEscapeUtils;
 import org.apache.commons.lang.builder.ToStringBuilder;
 import org.apache.commons.lang.builder.ToStringStyle;
 
-class LineCoverageRecord {
+import java.io.Serializable;
+
+class LineCoverageRecord implements Serializable {
 
     private int lineNr;
     private int timesExecuted;
@@ -18,12 +20,22 @@ class LineCoverageRecord {
     }
 
     public static LineCoverageRecord merge(final LineCoverageRecord l1, final LineCoverageRecord l2) {
+        return merge(l1, l2, false);
+    }
+
+    /**
+     * @param lineHitOnly whether to only keep track of the line having been executed at all, clamping the count to 1
+     */
+    public static LineCoverageRecord merge(final LineCoverageRecord l1, final LineCoverageRecord l2,
+            final boolean lineHitOnly) {
         Preconditions.checkArgument(l1.lineNr == l2.lineNr, "Got different line numbers: %d  and %d", l1.lineNr, l2.lineNr);
         Preconditions.checkArgument(l1.line.equals(l2.line), "Got different lines: %d and %d", l1.line, l2.line);
 
+        final int timesExecuted = l1.timesExecuted == -1 ? -1 : l1.timesExecuted + l2.timesExecuted;
+
         return new LineCoverageRecord(
                 l1.lineNr,
-                l1.timesExecuted == -1 ? -1 : l1.timesExecuted + l2.timesExecuted,
+                lineHitOnly ? Math.min(timesExecuted, 1) : timesExecuted,
                 l1.line
         );
     }
@@ -36,6 +48,10 @@ class LineCoverageRecord {
         return timesExecuted;
     }
 
+    String getLine() {
+        return line;
+    }
+
     public String getLineSource() {
         return StringEscapeUtils.escapeHtml(StringEscapeUtils.escapeJavaScript(line));
     }
@@ -0,0 +1,126 @@
+package com.github.timurstrekalov.saga.core;
+
+import com.google.common.base.Joiner;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The lines of a script, kept as offsets into its source code instead of a string per line. Meant to be shared by the
+ * stats of every test that has run the script, which only need an array of hit counts on top of it.
+ * <p>
+ * The lines are split the same way {@link java.util.Scanner#nextLine()} splits them, and trailing lines that are blank
+ * are left out.
+ */
+final class LineIndex implements Serializable {
+
+    private final String source;
+    private final int[] lineStarts;
+    private final int[] lineEnds;
+
+    LineIndex(final String source) {
+        this.source = source;
+
+        int[] starts = new int[16];
+        int[] ends = new int[16];
+        int lineCount = 0;
+        int nonBlankLineCount = 0;
+        int lineStart = 0;
+        boolean blank = true;
+
+        for (int i = 0; i <= source.length(); i++) {
+            final char c = i < source.length() ? source.charAt(i) : '\n';
+
+            if (isLineTerminator(c)) {
+                if (lineCount == starts.length) {
+                    starts = Arrays.copyOf(starts, lineCount * 2);
+                    ends = Arrays.copyOf(ends, lineCount * 2);
+                }
+
+                starts[lineCount] = lineStart;
+                ends[lineCount] = i;
+                lineCount++;
+
+                if (!blank) {
+                    nonBlankLineCount = lineCount;
+                }
+
+                if (c == '\r' && i + 1 < source.length() && source.charAt(i + 1) == '\n') {
+                    i++;
+                }
+
+                lineStart = i + 1;
+                blank = true;
+            } else if (!Character.isWhitespace(c)) {
+                blank = false;
+            }
+        }
+
+        lineStarts = Arrays.copyOf(starts, nonBlankLineCount);
+        lineEnds = Arrays.copyOf(ends, nonBlankLineCount);
+    }
+
+    private LineIndex(final String source, final int[] lineStarts, final int[] lineEnds) {
+        this.source = source;
+        this.lineStarts = lineStarts;
+        this.lineEnds = lineEnds;
+    }
+
+    /**
+     * @return an index made up of exactly the given lines, blank or not
+     */
+    static LineIndex fromLines(final List<String> lines) {
+        final int[] lineStarts = new int[lines.size()];
+        final int[] lineEnds = new int[lines.size()];
+
+        int offset = 0;
+        for (int i = 0; i < lines.size(); i++) {
+            lineStarts[i] = offset;
+            lineEnds[i] = offset + lines.get(i).length();
+            offset = lineEnds[i] + 1;
+        }
+
+        return new LineIndex(Joiner.on('\n').join(lines), lineStarts, lineEnds);
+    }
+
+    private static boolean isLineTerminator(final char c) {
+        return c == '\n' || c == '\r' || c == '\u2028' || c == '\u2029' || c == '\u0085';
+    }
+
+    int getLineCount() {
+        return lineStarts.length;
+    }
+
+    /**
+     * @param index the index of the line, i.e. the line number minus one
+     */
+    String getLine(final int index) {
+        return source.substring(lineStarts[index], lineEnds[index]);
+    }
+
+    /**
+     * @return whether both indexes are made up of the same lines, regardless of the line terminators in between
+     */
+    boolean hasSameLines(final LineIndex other) {
+        if (this == other) {
+            return true;
+        }
+
+        if (lineStarts.length != other.lineStarts.length) {
+            return false;
+        }
+
+        for (int i = 0; i < lineStarts.length; i++) {
+            final int length = lineEnds[i] - lineStarts[i];
+
+            if (length != other.lineEnds[i] - other.lineStarts[i]
+                    || !source.regionMatches(lineStarts[i], other.source, other.lineStarts[i], length)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+}
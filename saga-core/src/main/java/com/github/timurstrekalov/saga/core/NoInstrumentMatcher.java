@@ -0,0 +1,82 @@
+package com.github.timurstrekalov.saga.core;
+
+import com.google.common.base.Joiner;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Decides whether scripts should be left alone based on the no-instrument patterns. The patterns are compiled once,
+ * into a single alternation where possible, and the decision for every source name is remembered, since the same
+ * scripts are loaded by test after test.
+ */
+class NoInstrumentMatcher {
+
+    /**
+     * Eval'd and generated scripts are named after a hash of their code, so running the same code again reuses its
+     * decision, but code that's built at run time (e.g. JSON or templates passed to eval) gets a new name every time it
+     * changes, so the decisions are only kept for as many names as a large test suite would have actual files
+     */
+    private static final int MAX_DECISIONS = 10000;
+
+    /**
+     * Back references would refer to the wrong groups once the patterns are combined
+     */
+    private static final Pattern backReferenceRe = Pattern.compile("\\\\(\\d|k<)");
+
+    private final List<Pattern> patterns;
+
+    private final LoadingCache<String, Boolean> decisions = CacheBuilder.newBuilder()
+            .maximumSize(MAX_DECISIONS)
+            .build(new CacheLoader<String, Boolean>() {
+                @Override
+                public Boolean load(final String sourceName) {
+                    return matchesAny(sourceName);
+                }
+            });
+
+    NoInstrumentMatcher(final Collection<String> patterns) {
+        this.patterns = compile(patterns);
+    }
+
+    private static List<Pattern> compile(final Collection<String> patterns) {
+        if (patterns.isEmpty()) {
+            return ImmutableList.of();
+        }
+
+        for (final String pattern : patterns) {
+            if (backReferenceRe.matcher(pattern).find()) {
+                final List<Pattern> result = Lists.newArrayListWithCapacity(patterns.size());
+
+                for (final String p : patterns) {
+                    result.add(Pattern.compile(p));
+                }
+
+                return result;
+            }
+        }
+
+        return ImmutableList.of(Pattern.compile("(?:" + Joiner.on(")|(?:").join(patterns) + ")"));
+    }
+
+    boolean matches(final String sourceName) {
+        return !patterns.isEmpty() && decisions.getUnchecked(sourceName);
+    }
+
+    private boolean matchesAny(final String sourceName) {
+        for (final Pattern pattern : patterns) {
+            if (pattern.matcher(sourceName).matches()) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+}
@@ -0,0 +1,187 @@
+package com.github.timurstrekalov.saga.core;
+
+import com.google.common.base.Optional;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.io.Closeables;
+import com.google.common.io.Files;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Set;
+
+/**
+ * Adds raw coverage reports of either format to a {@link CoverageAccumulator}, one report at a time, so any number of
+ * them can be merged without holding more than a report per thread in memory. Can be called from several threads.
+ * <p>
+ * Neither format has the source code of the files, which the HTML report shows, so it's read from the files
+ * themselves, once per file. If a file can't be read, or has a different number of lines than the coverage data, its
+ * lines are left blank.
+ */
+class RawCoverageMerger {
+
+    private static final Logger logger = LoggerFactory.getLogger(RawCoverageMerger.class);
+
+    private final CoverageAccumulator accumulator;
+    private final Charset sourceCharset;
+
+    private final LoadingCache<String, Optional<LineIndex>> lineIndexes;
+    private final Set<String> mismatchedFileNames = Sets.newSetFromMap(Maps.<String, Boolean>newConcurrentMap());
+
+    RawCoverageMerger(final CoverageAccumulator accumulator, final Charset sourceCharset) {
+        this.accumulator = accumulator;
+        this.sourceCharset = sourceCharset;
+
+        lineIndexes = CacheBuilder.newBuilder().build(new CacheLoader<String, Optional<LineIndex>>() {
+            @Override
+            public Optional<LineIndex> load(final String fileName) {
+                return loadLineIndex(fileName);
+            }
+        });
+    }
+
+    /**
+     * @param rawReport a binary report if its name ends with .bin, an LCOV one otherwise
+     */
+    void merge(final File rawReport) throws IOException {
+        if (rawReport.getName().endsWith(".bin")) {
+            mergeBinary(rawReport);
+        } else {
+            mergeLcov(rawReport);
+        }
+    }
+
+    private void mergeBinary(final File rawReport) throws IOException {
+        final BinaryCoverageReader reader = BinaryCoverageReader.open(rawReport);
+
+        try {
+            for (int i = 0; i < reader.getFileCount(); i++) {
+                final String fileName = reader.getFileName(i);
+                final int[] hits = reader.readHits(i);
+
+                // inline scripts have no file of their own to read the source from
+                final LineIndex lineIndex = reader.isSeparateFile(i)
+                        ? getLineIndex(fileName, hits.length, true)
+                        : getBlankLineIndex(hits.length);
+
+                accumulator.add(new FileStats(fileName, lineIndex, hits, reader.isSeparateFile(i)));
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Only reads the SF, DA and end_of_record lines, which are the only ones the LCOV raw report has
+     */
+    private void mergeLcov(final File rawReport) throws IOException {
+        final BufferedReader in = Files.newReader(rawReport, sourceCharset);
+
+        try {
+            String fileName = null;
+            int[] lineNrs = new int[256];
+            int[] counts = new int[256];
+            int lineCount = 0;
+
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.startsWith("SF:")) {
+                    fileName = line.substring(3);
+                    lineCount = 0;
+                } else if (line.startsWith("DA:") && fileName != null) {
+                    final int comma = line.indexOf(',');
+                    final int end = line.indexOf(',', comma + 1);
+
+                    if (lineCount == lineNrs.length) {
+                        lineNrs = Arrays.copyOf(lineNrs, lineCount * 2);
+                        counts = Arrays.copyOf(counts, lineCount * 2);
+                    }
+
+                    try {
+                        lineNrs[lineCount] = Integer.parseInt(line.substring(3, comma));
+                        // a checksum may follow the count
+                        counts[lineCount] = Integer.parseInt(end > 0
+                                ? line.substring(comma + 1, end)
+                                : line.substring(comma + 1));
+                        lineCount++;
+                    } catch (final RuntimeException e) {
+                        throw new IOException("Malformed line in " + rawReport + ": " + line);
+                    }
+                } else if (line.equals("end_of_record") && fileName != null) {
+                    addLcovRecord(fileName, lineNrs, counts, lineCount);
+                    fileName = null;
+                }
+            }
+        } finally {
+            Closeables.closeQuietly(in);
+        }
+    }
+
+    private void addLcovRecord(final String fileName, final int[] lineNrs, final int[] counts, final int lineCount) {
+        int maxLineNr = 0;
+
+        for (int i = 0; i < lineCount; i++) {
+            maxLineNr = Math.max(maxLineNr, lineNrs[i]);
+        }
+
+        final LineIndex lineIndex = getLineIndex(fileName, maxLineNr, false);
+        final int[] hits = new int[lineIndex.getLineCount()];
+
+        Arrays.fill(hits, -1);
+
+        for (int i = 0; i < lineCount; i++) {
+            if (lineNrs[i] > 0) {
+                hits[lineNrs[i] - 1] = counts[i];
+            }
+        }
+
+        accumulator.add(new FileStats(fileName, lineIndex, hits, true));
+    }
+
+    /**
+     * @param exact whether the index must have exactly the given number of lines, or at least that many
+     */
+    private LineIndex getLineIndex(final String fileName, final int lineCount, final boolean exact) {
+        final Optional<LineIndex> lineIndex = lineIndexes.getUnchecked(fileName);
+
+        if (lineIndex.isPresent()) {
+            final int actualLineCount = lineIndex.get().getLineCount();
+
+            if (exact ? actualLineCount == lineCount : actualLineCount >= lineCount) {
+                return lineIndex.get();
+            }
+
+            if (mismatchedFileNames.add(fileName)) {
+                logger.warn("{} has {} lines, which doesn't match its coverage data, leaving its lines blank", fileName,
+                        actualLineCount);
+            }
+        }
+
+        return getBlankLineIndex(lineCount);
+    }
+
+    private static LineIndex getBlankLineIndex(final int lineCount) {
+        return LineIndex.fromLines(Collections.nCopies(lineCount, ""));
+    }
+
+    private Optional<LineIndex> loadLineIndex(final String fileName) {
+        final File file = new File(fileName);
+
+        try {
+            return Optional.of(new LineIndex(Files.toString(file, sourceCharset)));
+        } catch (final IOException e) {
+            logger.warn("Can't read the source of {}, leaving its lines blank: {}", fileName, e.getMessage());
+            return Optional.absent();
+        }
+    }
+
+}
@@ -0,0 +1,16 @@
+package com.github.timurstrekalov.saga.core;
+
+/**
+ * How the raw coverage data is written next to the HTML reports
+ */
+public enum RawReportFormat {
+    /**
+     * LCOV tracefile, one {@code DA:} line per executable line
+     */
+    LCOV,
+    /**
+     * A file table followed by the varint-encoded hits of every line, read with {@link BinaryCoverageReader} and turned
+     * into LCOV with {@link LcovConverter} when needed
+     */
+    BINARY
+}
@@ -1,15 +1,14 @@
 package com.github.timurstrekalov.saga.core;
 
-import com.google.common.base.Function;
 import com.google.common.base.Predicate;
 import com.google.common.collect.Collections2;
-import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 
 import java.io.File;
+import java.io.Serializable;
 import java.util.*;
 
-class RunStats implements Iterable<FileStats> {
+class RunStats implements Iterable<FileStats>, Serializable {
 
     public static final RunStats EMPTY = new RunStats(null, null);
 
@@ -18,6 +17,12 @@ class RunStats implements Iterable<FileStats> {
 
     private final Map<String, FileStats> fileStatsMap = Maps.newTreeMap();
 
+    private boolean lineHitOnly;
+    private long duration;
+    private boolean timedOut;
+
+    private transient CoverageSummary summary;
+
     RunStats(final File test) {
         this(test, String.format("Coverage report for \"%s\"", test.getAbsolutePath()));
     }
@@ -35,28 +40,71 @@ class RunStats implements Iterable<FileStats> {
         return test.getName() + "-coverage.dat";
     }
 
+    String getBinaryRawReportName() {
+        return test.getName() + "-coverage.bin";
+    }
+
     void add(final FileStats newStats) {
         final String key = newStats.getFullName();
         final FileStats oldStats = fileStatsMap.get(key);
 
         if (oldStats != null) {
-            fileStatsMap.put(key, FileStats.merge(newStats, oldStats));
+            fileStatsMap.put(key, FileStats.merge(newStats, oldStats, lineHitOnly));
         } else {
             fileStatsMap.put(key, newStats);
         }
+
+        summary = null;
     }
 
-    public Collection<FileStats> getFileStats() {
-        final List<FileStats> result = Lists.newLinkedList(fileStatsMap.values());
-        
-        Collections.sort(result, new Comparator<FileStats>() {
-            @Override
-            public int compare(final FileStats s1, final FileStats s2) {
-                return Integer.valueOf(s1.getCoverage()).compareTo(s2.getCoverage());
-            }
-        });
+    /**
+     * @return the file stats in no particular order, without copying them
+     */
+    Collection<FileStats> getUnsortedFileStats() {
+        return Collections.unmodifiableCollection(fileStatsMap.values());
+    }
+
+    void setLineHitOnly(final boolean lineHitOnly) {
+        this.lineHitOnly = lineHitOnly;
+    }
+
+    /**
+     * @return how long the test took to run, in milliseconds
+     */
+    long getDuration() {
+        return duration;
+    }
+
+    void setDuration(final long duration) {
+        this.duration = duration;
+    }
 
-        return result;
+    /**
+     * @return whether the test was stopped for running past its timeout or instruction budget, in which case the stats
+     * only cover what it managed to run until then
+     */
+    boolean isTimedOut() {
+        return timedOut;
+    }
+
+    void setTimedOut(final boolean timedOut) {
+        this.timedOut = timedOut;
+    }
+
+    /**
+     * @return the statement counts of the files, their directories and the whole run, added up the first time they're
+     * asked for after the last file has been added
+     */
+    public CoverageSummary getSummary() {
+        if (summary == null) {
+            summary = CoverageSummary.of(fileStatsMap.values());
+        }
+
+        return summary;
+    }
+
+    public Collection<FileStats> getFileStats() {
+        return getSummary().getFiles();
     }
 
     public Collection<FileStats> getFileStatsWithSeparateFileOnly() {
@@ -69,33 +117,23 @@ class RunStats implements Iterable<FileStats> {
     }
 
     public int getTotalStatements() {
-        return Util.sum(fileStatsMap.values(), new Function<FileStats, Integer>() {
-            @Override
-            public Integer apply(final FileStats input) {
-                return input.getStatements();
-            }
-        });
+        return getSummary().getStatements();
     }
 
     public int getTotalExecuted() {
-        return Util.sum(fileStatsMap.values(), new Function<FileStats, Integer>() {
-            @Override
-            public Integer apply(final FileStats input) {
-                return input.getExecuted();
-            }
-        });
+        return getSummary().getExecuted();
     }
 
     public int getTotalCoverage() {
-        return Util.toCoverage(getTotalStatements(), getTotalExecuted());
+        return getSummary().getCoverage();
     }
 
     public boolean getHasStatements() {
-        return getTotalStatements() > 0;
+        return getSummary().getHasStatements();
     }
 
     public String getBarColor() {
-        return Util.getColor(getTotalCoverage());
+        return getSummary().getBarColor();
     }
 
     @Override
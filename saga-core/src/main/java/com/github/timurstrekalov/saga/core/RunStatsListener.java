@@ -0,0 +1,12 @@
+package com.github.timurstrekalov.saga.core;
+
+import java.io.IOException;
+
+/**
+ * Gets the stats of every test as soon as it finishes, possibly from several threads at the same time
+ */
+interface RunStatsListener {
+
+    void testFinished(RunStats runStats) throws IOException;
+
+}
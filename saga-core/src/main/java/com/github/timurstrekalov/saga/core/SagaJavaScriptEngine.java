@@ -0,0 +1,104 @@
+package com.github.timurstrekalov.saga.core;
+
+import com.gargoylesoftware.htmlunit.WebClient;
+import com.gargoylesoftware.htmlunit.WebWindow;
+import com.gargoylesoftware.htmlunit.javascript.HtmlUnitContextFactory;
+import com.gargoylesoftware.htmlunit.javascript.JavaScriptEngine;
+import net.sourceforge.htmlunit.corejs.javascript.Context;
+import net.sourceforge.htmlunit.corejs.javascript.ContextAction;
+import net.sourceforge.htmlunit.corejs.javascript.ScriptableObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.Field;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Makes the client's {@link CoverageCounters} available to the scripts of every window it opens, and runs them through
+ * a {@link LimitingContextFactory}. Optionally puts every window on a {@link VirtualClock}.
+ */
+class SagaJavaScriptEngine extends JavaScriptEngine {
+
+    private static final Logger logger = LoggerFactory.getLogger(SagaJavaScriptEngine.class);
+    private static final AtomicBoolean warnedAboutContextFactory = new AtomicBoolean();
+
+    private final CoverageCounters coverageCounters = new CoverageCounters();
+    private final LimitingContextFactory limitingContextFactory;
+    private final VirtualClock virtualClock;
+
+    /**
+     * @param virtualClock the clock to put the windows on, or null to keep the real one
+     */
+    SagaJavaScriptEngine(final WebClient webClient, final VirtualClock virtualClock) {
+        super(webClient);
+
+        this.virtualClock = virtualClock;
+        limitingContextFactory = installLimitingContextFactory(webClient);
+    }
+
+    /**
+     * The engine creates its context factory itself and offers no way of replacing it, hence the reflection
+     *
+     * @return the installed factory, or null if this version of HtmlUnit keeps it somewhere else
+     */
+    private LimitingContextFactory installLimitingContextFactory(final WebClient webClient) {
+        for (final Field field : JavaScriptEngine.class.getDeclaredFields()) {
+            if (field.getType() == HtmlUnitContextFactory.class) {
+                try {
+                    final LimitingContextFactory factory = new LimitingContextFactory(webClient);
+
+                    field.setAccessible(true);
+                    field.set(this, factory);
+
+                    return factory;
+                } catch (final Exception e) {
+                    logger.debug(e.getMessage(), e);
+                    break;
+                }
+            }
+        }
+
+        if (!warnedAboutContextFactory.getAndSet(true)) {
+            logger.warn("Could not install the limiting context factory, tests won't be held to instruction budgets");
+        }
+
+        return null;
+    }
+
+    @Override
+    public void initialize(final WebWindow webWindow) {
+        super.initialize(webWindow);
+
+        final Object scope = webWindow.getScriptObject();
+
+        if (scope instanceof ScriptableObject) {
+            coverageCounters.register((ScriptableObject) scope);
+
+            if (virtualClock != null) {
+                getContextFactory().call(new ContextAction() {
+                    @Override
+                    public Object run(final Context cx) {
+                        virtualClock.register(cx, (ScriptableObject) scope, webWindow);
+                        return null;
+                    }
+                });
+            }
+        }
+    }
+
+    CoverageCounters getCoverageCounters() {
+        return coverageCounters;
+    }
+
+    /**
+     * @return the clock the windows are on, or null if they're on the real one
+     */
+    VirtualClock getVirtualClock() {
+        return virtualClock;
+    }
+
+    LimitingContextFactory getLimitingContextFactory() {
+        return limitingContextFactory;
+    }
+
+}
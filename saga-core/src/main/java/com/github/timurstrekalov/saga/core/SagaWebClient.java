@@ -6,15 +6,17 @@ import com.gargoylesoftware.htmlunit.javascript.JavaScriptErrorListener;
 
 import java.io.IOException;
 
-class SagaWebClient extends ThreadLocal<WebClient> {
+class SagaWebClient {
 
     private static final IncorrectnessListener quietIncorrectnessListener = new QuietIncorrectnessListener();
     private static final JavaScriptErrorListener loggingJsErrorListener = new QuietJavaScriptErrorListener();
     private static final HTMLParserListener quietHtmlParserListener = new QuietHtmlParserListener();
     private static final SilentCssErrorHandler quietCssErrorHandler = new SilentCssErrorHandler();
 
-    @Override
-    protected WebClient initialValue() {
+    /**
+     * @param virtualClock whether to run timers on a {@link VirtualClock} instead of waiting for them in real time
+     */
+    static WebClient newWebClient(final boolean virtualClock) {
         final WebClient client = new WebClient(BrowserVersion.FIREFOX_3_6) {
             @Override
             public WebResponse loadWebResponse(final WebRequest webRequest) throws IOException {
@@ -22,6 +24,7 @@ class SagaWebClient extends ThreadLocal<WebClient> {
             }
         };
 
+        client.setJavaScriptEngine(new SagaJavaScriptEngine(client, virtualClock ? new VirtualClock() : null));
         client.setIncorrectnessListener(quietIncorrectnessListener);
         client.setJavaScriptErrorListener(loggingJsErrorListener);
         client.setHTMLParserListener(quietHtmlParserListener);
@@ -3,6 +3,7 @@ package com.github.timurstrekalov.saga.core;
 import com.google.common.collect.Maps;
 import org.apache.commons.lang.builder.ToStringBuilder;
 
+import java.util.Arrays;
 import java.util.Map;
 import java.util.Set;
 
@@ -12,14 +13,44 @@ class ScriptData {
     private final String sourceCode;
     private final boolean separateFile;
 
-    private final Map<Integer, Integer> statementsWithLengths = Maps.newTreeMap();
+    private final Map<Integer, Integer> statementsWithLengths;
 
     private String instrumentedSourceCode;
 
+    /**
+     * Worked out once per distinct source, when the first script is bound to it, and shared by all the scripts bound to
+     * it, since they only depend on the source and the statement table
+     */
+    private LineIndex lineIndex;
+    private int[] statementIndexes;
+
     ScriptData(final String sourceName, final String sourceCode, final boolean separateFile) {
+        this(sourceName, sourceCode, separateFile, Maps.<Integer, Integer>newTreeMap());
+    }
+
+    private ScriptData(
+            final String sourceName,
+            final String sourceCode,
+            final boolean separateFile,
+            final Map<Integer, Integer> statementsWithLengths) {
         this.sourceName = sourceName;
         this.sourceCode = sourceCode;
         this.separateFile = separateFile;
+        this.statementsWithLengths = statementsWithLengths;
+    }
+
+    /**
+     * Creates script data for another script with the same source code, sharing the source and the statement table
+     * with this one
+     */
+    ScriptData bindTo(final String sourceName, final boolean separateFile, final String instrumentedSourceCode) {
+        final ScriptData data = new ScriptData(sourceName, sourceCode, separateFile, statementsWithLengths);
+        data.setInstrumentedSourceCode(instrumentedSourceCode);
+
+        data.lineIndex = getLineIndex();
+        data.statementIndexes = getStatementIndexes();
+
+        return data;
     }
 
     void addExecutableLine(final Integer lineNr, final Integer length) {
@@ -50,6 +81,46 @@ class ScriptData {
         return statementsWithLengths.get(lineNr);
     }
 
+    synchronized LineIndex getLineIndex() {
+        if (lineIndex == null) {
+            indexLines();
+        }
+
+        return lineIndex;
+    }
+
+    /**
+     * @return the index of the statement on every line of the {@link #getLineIndex() line index}, in line order, or -1
+     * if there's none
+     */
+    synchronized int[] getStatementIndexes() {
+        if (statementIndexes == null) {
+            indexLines();
+        }
+
+        return statementIndexes;
+    }
+
+    private void indexLines() {
+        lineIndex = new LineIndex(sourceCode);
+        statementIndexes = new int[lineIndex.getLineCount()];
+
+        Arrays.fill(statementIndexes, -1);
+
+        int statementIndex = 0;
+        for (final Integer lineNr : statementsWithLengths.keySet()) {
+            if (lineNr > statementIndexes.length) {
+                break;
+            }
+
+            if (lineNr > 0) {
+                statementIndexes[lineNr - 1] = statementIndex;
+            }
+
+            statementIndex++;
+        }
+    }
+
     /**
      * For inline scripts, first statement's line number might not be 1 (it will be the actual line number in the
      * HTML)
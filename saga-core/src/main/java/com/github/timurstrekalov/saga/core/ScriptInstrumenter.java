@@ -4,18 +4,24 @@ import com.gargoylesoftware.htmlunit.ScriptPreProcessor;
 import com.gargoylesoftware.htmlunit.html.HtmlElement;
 import com.gargoylesoftware.htmlunit.html.HtmlPage;
 import com.gargoylesoftware.htmlunit.javascript.HtmlUnitContextFactory;
-import com.google.common.base.Predicate;
-import com.google.common.collect.ConcurrentHashMultiset;
-import com.google.common.collect.Iterables;
+import com.google.common.base.Charsets;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 import com.google.common.hash.Hashing;
 import com.google.common.io.ByteStreams;
 import com.google.common.io.Files;
 import net.sourceforge.htmlunit.corejs.javascript.CompilerEnvirons;
+import net.sourceforge.htmlunit.corejs.javascript.Context;
+import net.sourceforge.htmlunit.corejs.javascript.ContextFactory;
 import net.sourceforge.htmlunit.corejs.javascript.Parser;
+import net.sourceforge.htmlunit.corejs.javascript.ScriptRuntime;
 import net.sourceforge.htmlunit.corejs.javascript.Token;
 import net.sourceforge.htmlunit.corejs.javascript.ast.*;
+import org.apache.commons.lang.StringUtils;
 import org.codehaus.plexus.util.FileUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -24,20 +30,16 @@ import java.io.File;
 import java.io.IOException;
 import java.lang.reflect.Field;
 import java.net.URI;
-import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ConcurrentMap;
-import java.util.concurrent.atomic.AtomicInteger;
-import java.util.regex.Matcher;
+import java.util.Set;
 import java.util.regex.Pattern;
 
 import static net.sourceforge.htmlunit.corejs.javascript.Token.*;
 
 class ScriptInstrumenter implements ScriptPreProcessor {
 
-    private static final AtomicInteger evalCounter = new AtomicInteger();
-
     // hack, see http://sourceforge.net/tracker/?func=detail&atid=448266&aid=3106039&group_id=47038
     // still no build with that fix
     static {
@@ -57,30 +59,71 @@ class ScriptInstrumenter implements ScriptPreProcessor {
 
     private static final Pattern inlineScriptRe = Pattern.compile("script in (.+) from \\((\\d+), (\\d+)\\) to \\((\\d+), (\\d+)\\)");
     private static final Pattern evalRe = Pattern.compile("(.+)#(\\d+\\(eval\\))");
-    private static final Pattern nonFileRe = Pattern.compile("JavaScriptStringJob");
+    private static final Pattern nonFileRe = Pattern.compile(".*JavaScriptStringJob");
+
+    /**
+     * How many distinct eval'd and generated scripts are kept instrumented
+     */
+    private static final int MAX_DYNAMIC_SCRIPTS = 1000;
+
+    /**
+     * Identifier-safe, so that it's left alone when the AST is written back out as source
+     */
+    private static final String SOURCE_NAME_PLACEHOLDER = "__saga_source_name_placeholder__";
+    private static final String COUNTER_ALIAS_PLACEHOLDER = "__saga_counter_alias_placeholder__";
+
+    private static final String LINE_SEPARATOR = String.format("%n");
+
+    /**
+     * Only used to avoid writing the same files over and over again, so it's fine to forget about some of them
+     */
+    private static final int MAX_WRITTEN_TO_DISK = 10000;
+
+    /**
+     * Roughly how many bytes of instrumented code bound to actual source names are kept, on top of the templates
+     */
+    private static final long MAX_BOUND_SCRIPT_BYTES = 64L * 1024 * 1024;
+
+    private static final InstrumentedScriptCache instrumentedScriptCache =
+            new InstrumentedScriptCache(InstrumentedScriptCache.DEFAULT_MAX_BYTES);
+    private static final Cache<String, ScriptData> dynamicScriptCache = CacheBuilder.newBuilder()
+            .maximumSize(MAX_DYNAMIC_SCRIPTS)
+            .build();
+    private static final Cache<String, ScriptData> boundScriptCache = CacheBuilder.newBuilder()
+            .maximumWeight(MAX_BOUND_SCRIPT_BYTES)
+            .weigher(new Weigher<String, ScriptData>() {
+                @Override
+                public int weigh(final String key, final ScriptData data) {
+                    // the source code and the statement table are shared with the template
+                    return (int) Math.min(2L * data.getInstrumentedSourceCode().length(), Integer.MAX_VALUE);
+                }
+            })
+            .build();
 
-    private static final ConcurrentMap<String, ScriptData> instrumentedScriptCache = Maps.newConcurrentMap();
-    private static final ConcurrentHashMultiset<String> writtenToDisk = ConcurrentHashMultiset.create();
+    private static final ThreadLocal<ParserEnvironment> parserEnvironments = new ThreadLocal<ParserEnvironment>();
+    private static final Cache<String, Boolean> writtenToDisk = CacheBuilder.newBuilder()
+            .maximumSize(MAX_WRITTEN_TO_DISK)
+            .build();
 
     private final HtmlUnitContextFactory contextFactory;
     private final String coverageVariableName;
-    private final String initializingCode;
-    private final String arrayInitializer;
 
     private final List<ScriptData> scriptDataList = Lists.newLinkedList();
+    private final Set<String> instrumentedSourceNames = Sets.newHashSet();
 
-    private Collection<Pattern> ignorePatterns;
+    private NoInstrumentMatcher noInstrumentMatcher;
     private File outputDir;
     private boolean outputInstrumentedFiles;
 
     private boolean cacheInstrumentedCode;
+    private InstrumentationCache persistentCache;
+    private boolean preserveSourceFormatting;
+    private CounterStyle counterStyle = CounterStyle.PROPERTY;
+    private boolean lineHitOnly;
 
     public ScriptInstrumenter(final HtmlUnitContextFactory contextFactory, final String coverageVariableName) {
         this.contextFactory = contextFactory;
         this.coverageVariableName = coverageVariableName;
-
-        initializingCode = String.format("%s = window.%s || {};%n", coverageVariableName, coverageVariableName);
-        arrayInitializer = String.format("%s['%%s'][%%d] = 0;%n", coverageVariableName);
     }
 
     @Override
@@ -91,9 +134,14 @@ class ScriptInstrumenter implements ScriptPreProcessor {
             final int lineNumber,
             final HtmlElement htmlElement) {
         try {
-            final String normalizedSourceName = handleEvals(handleInlineScripts(sourceName));
-
-            if (shouldIgnore(normalizedSourceName)) {
+            final boolean dynamic = isDynamic(sourceName);
+            final String normalizedSourceName = dynamic
+                    ? getDynamicScriptName(sourceName, sourceCode)
+                    : handleInlineScripts(sourceName);
+
+            // the no-instrument patterns written against the names eval'd and generated scripts are given by HtmlUnit
+            // keep working, even though the scripts are now named after their contents
+            if (shouldIgnore(normalizedSourceName) || dynamic && shouldIgnore(handleInlineScripts(sourceName))) {
                 return sourceCode;
             }
 
@@ -110,47 +158,21 @@ class ScriptInstrumenter implements ScriptPreProcessor {
                 fullSourcePath = normalizedSourceName;
             }
 
-            if (cacheInstrumentedCode && instrumentedScriptCache.containsKey(fullSourcePath)) {
-                final ScriptData data = instrumentedScriptCache.get(fullSourcePath);
-                scriptDataList.add(data);
-                return data.getInstrumentedSourceCode();
-            }
-
-            final ScriptData data = new ScriptData(fullSourcePath, sourceCode, separateFile);
-            scriptDataList.add(data);
-
-            final CompilerEnvirons environs = new CompilerEnvirons();
-            environs.initFromContext(contextFactory.enterContext());
+            final ScriptData data = getInstrumentedScript(sourceCode, fullSourcePath, separateFile, lineNumber,
+                    dynamic);
 
-            final AstRoot root = new Parser(environs).parse(data.getSourceCode(), data.getSourceName(), lineNumber);
-            root.visit(new InstrumentingVisitor(data, lineNumber - 1));
-
-            final String treeSource = root.toSource();
-            final StringBuilder buf = new StringBuilder(
-                    initializingCode.length() +
-                    data.getNumberOfStatements() * arrayInitializer.length() +
-                    treeSource.length());
-
-            buf.append(initializingCode);
-            buf.append(String.format("%s['%s'] = {};%n", coverageVariableName, escapePath(data.getSourceName())));
-
-            for (final Integer i : data.getLineNumbersOfAllStatements()) {
-                buf.append(String.format(arrayInitializer, escapePath(data.getSourceName()), i));
+            // scripts run more than once (in particular, the same code eval'd over and over again) keep adding to
+            // the same counters, which only need to be collected once
+            if (instrumentedSourceNames.add(data.getSourceName())) {
+                scriptDataList.add(data);
             }
 
-            buf.append(treeSource);
-
-            final String instrumentedCode = buf.toString();
-            data.setInstrumentedSourceCode(instrumentedCode);
-
-            if (cacheInstrumentedCode) {
-                instrumentedScriptCache.putIfAbsent(data.getSourceName(), data);
-            }
+            final String instrumentedCode = data.getInstrumentedSourceCode();
 
             if (outputInstrumentedFiles && separateFile) {
                 synchronized (writtenToDisk) {
                     try {
-                        if (!writtenToDisk.contains(data.getSourceName())) {
+                        if (writtenToDisk.getIfPresent(data.getSourceName()) == null) {
                             final File file = new File(data.getSourceName());
                             final File fileOutputDir = new File(outputDir, Hashing.md5().hashString(file.getParent()).toString());
                             FileUtils.mkdir(fileOutputDir.getAbsolutePath());
@@ -160,7 +182,7 @@ class ScriptInstrumenter implements ScriptPreProcessor {
                             logger.info("Writing instrumented file: {}", outputFile.getAbsolutePath());
                             ByteStreams.write(instrumentedCode.getBytes("UTF-8"), Files.newOutputStreamSupplier(outputFile));
 
-                            writtenToDisk.add(data.getSourceName());
+                            writtenToDisk.put(data.getSourceName(), Boolean.TRUE);
                         }
                     } catch (final IOException e) {
                         throw new RuntimeException(e);
@@ -175,8 +197,341 @@ class ScriptInstrumenter implements ScriptPreProcessor {
         }
     }
 
-    private String escapePath(final String path) {
-        return path.replaceAll("\\\\", "\\\\\\\\");
+    /**
+     * Binding a template means going over the whole of its instrumented code, so the result is kept as well, for the
+     * scripts that are loaded from the same place by test after test
+     */
+    private ScriptData getInstrumentedScript(
+            final String sourceCode,
+            final String fullSourcePath,
+            final boolean separateFile,
+            final int lineNumber,
+            final boolean dynamic) {
+        final String contentKey = getContentKey(sourceCode, dynamic);
+        final String boundKey = contentKey + (separateFile ? "|file|" : "|inline|") + fullSourcePath;
+
+        if (cacheInstrumentedCode) {
+            final ScriptData data = boundScriptCache.getIfPresent(boundKey);
+
+            if (data != null) {
+                return data;
+            }
+        }
+
+        final ScriptData template =
+                getInstrumentedTemplate(contentKey, sourceCode, fullSourcePath, lineNumber, dynamic);
+        final ScriptData data = template.bindTo(fullSourcePath, separateFile, StringUtils.replaceEach(
+                template.getInstrumentedSourceCode(),
+                new String[] {SOURCE_NAME_PLACEHOLDER, COUNTER_ALIAS_PLACEHOLDER},
+                new String[] {escapeSourceName(fullSourcePath), getCounterAlias(fullSourcePath)}));
+
+        if (cacheInstrumentedCode) {
+            boundScriptCache.put(boundKey, data);
+        }
+
+        return data;
+    }
+
+    /**
+     * Everything the instrumented code depends on apart from the source name
+     */
+    private String getContentKey(final String sourceCode, final boolean dynamic) {
+        return Hashing.sha1().newHasher()
+                .putString(coverageVariableName)
+                .putBoolean(dynamic)
+                .putBoolean(preserveSourceFormatting)
+                .putString(counterStyle.name())
+                .putBoolean(lineHitOnly)
+                .putString(sourceCode)
+                .hash()
+                .toString();
+    }
+
+    /**
+     * Instrumented code doesn't depend on where the script came from, apart from the source name used as the coverage
+     * key, so it's instrumented once per distinct source against a placeholder name, and the actual name is bound to
+     * it for every script that has the same contents.
+     * <p/>
+     * Eval'd and generated scripts are never written to the persistent cache, and are only kept in a bounded pool
+     * instead of the regular cache, since there's no telling how many of them there are going to be.
+     */
+    private ScriptData getInstrumentedTemplate(
+            final String contentKey,
+            final String sourceCode,
+            final String fullSourcePath,
+            final int lineNumber,
+            final boolean dynamic) {
+        if (dynamic) {
+            if (cacheInstrumentedCode) {
+                final ScriptData template = dynamicScriptCache.getIfPresent(contentKey);
+
+                if (template != null) {
+                    return template;
+                }
+            }
+
+            final ScriptData template = instrument(sourceCode, fullSourcePath, lineNumber, true);
+
+            if (cacheInstrumentedCode) {
+                dynamicScriptCache.put(contentKey, template);
+            }
+
+            return template;
+        }
+
+        if (cacheInstrumentedCode) {
+            final ScriptData template = instrumentedScriptCache.get(contentKey);
+
+            if (template != null) {
+                return template;
+            }
+        }
+
+        final String persistentCacheKey = persistentCache != null ? persistentCache.keyFor(contentKey) : null;
+
+        ScriptData template = persistentCache != null
+                ? persistentCache.get(persistentCacheKey, SOURCE_NAME_PLACEHOLDER, sourceCode, false)
+                : null;
+
+        if (template == null) {
+            template = instrument(sourceCode, fullSourcePath, lineNumber, false);
+
+            if (persistentCache != null) {
+                persistentCache.put(persistentCacheKey, template);
+            }
+        }
+
+        if (cacheInstrumentedCode) {
+            final ScriptData existing = instrumentedScriptCache.putIfAbsent(contentKey, template);
+
+            if (existing != null) {
+                return existing;
+            }
+        }
+
+        return template;
+    }
+
+    /**
+     * @param accumulating whether the counters should be kept if the script runs again instead of being reset
+     */
+    private ScriptData instrument(
+            final String sourceCode,
+            final String fullSourcePath,
+            final int lineNumber,
+            final boolean accumulating) {
+        return preserveSourceFormatting
+                ? instrumentBySplicing(sourceCode, fullSourcePath, accumulating)
+                : instrumentByRegenerating(sourceCode, fullSourcePath, lineNumber, accumulating);
+    }
+
+    private ScriptData instrumentByRegenerating(
+            final String sourceCode,
+            final String fullSourcePath,
+            final int lineNumber,
+            final boolean accumulating) {
+        final ScriptData data = new ScriptData(SOURCE_NAME_PLACEHOLDER, sourceCode, false);
+
+        final AstRoot root = new Parser(getCompilerEnvirons()).parse(data.getSourceCode(), fullSourcePath, lineNumber);
+        final InstrumentingVisitor visitor = new InstrumentingVisitor(data, lineNumber - 1);
+        root.visit(visitor);
+
+        if (counterStyle.isIndexed()) {
+            final Map<Integer, Integer> counterIndexes = getCounterIndexes(data);
+
+            // the counters were created with line numbers, since the indexes aren't known until all of them are found
+            for (final NumberLiteral counter : visitor.getCounters()) {
+                counter.setValue(counterIndexes.get((int) counter.getNumber()).toString());
+            }
+        }
+
+        final String treeSource = root.toSource();
+        final StringBuilder buf = new StringBuilder(treeSource.length() + data.getNumberOfStatements() * 32);
+
+        appendInitializingCode(buf, data, LINE_SEPARATOR, accumulating);
+        buf.append(treeSource);
+
+        data.setInstrumentedSourceCode(buf.toString());
+
+        return data;
+    }
+
+    /**
+     * Instead of writing the whole modified tree back out, only the points where the counters go are recorded, and
+     * the counters are then inserted right into the original source. Formatting is preserved, and since nothing
+     * (including the initializing code) adds any new lines, the line numbers stay the same as well.
+     */
+    private ScriptData instrumentBySplicing(
+            final String sourceCode,
+            final String fullSourcePath,
+            final boolean accumulating) {
+        final ScriptData data = new ScriptData(SOURCE_NAME_PLACEHOLDER, sourceCode, false);
+
+        final AstRoot root = new Parser(getCompilerEnvirons()).parse(data.getSourceCode(), fullSourcePath, 1);
+        final SplicingVisitor visitor = new SplicingVisitor(data);
+        root.visit(visitor);
+
+        final List<Splice> splices = visitor.getSplices();
+        Collections.sort(splices);
+
+        final Map<Integer, Integer> counterIndexes = getCounterIndexes(data);
+        final StringBuilder buf = new StringBuilder(sourceCode.length() + splices.size() * 48);
+
+        appendInitializingCode(buf, data, " ", accumulating);
+
+        int lastOffset = 0;
+
+        for (final Splice splice : splices) {
+            buf.append(sourceCode, lastOffset, splice.offset);
+            buf.append(splice.text);
+
+            if (splice.lineNr != Splice.NO_COUNTER) {
+                buf.append(newCounter(data, counterIndexes, splice.lineNr));
+            }
+
+            lastOffset = splice.offset;
+        }
+
+        buf.append(sourceCode, lastOffset, sourceCode.length());
+
+        data.setInstrumentedSourceCode(buf.toString());
+
+        return data;
+    }
+
+    /**
+     * Setting up the parser settings means entering a context, so they're only set up once per thread (for each
+     * context factory, although there's normally only one per thread) and reused for every script parsed on it
+     */
+    private CompilerEnvirons getCompilerEnvirons() {
+        final ParserEnvironment parserEnvironment = parserEnvironments.get();
+
+        if (parserEnvironment != null && parserEnvironment.contextFactory == contextFactory) {
+            return parserEnvironment.environs;
+        }
+
+        final CompilerEnvirons environs = new CompilerEnvirons();
+        final Context cx = contextFactory.enterContext();
+
+        try {
+            environs.initFromContext(cx);
+        } finally {
+            // when a page's script is being compiled, this just leaves the nested entry of its context
+            if (Context.getCurrentContext() == cx) {
+                Context.exit();
+            }
+        }
+
+        parserEnvironments.set(new ParserEnvironment(contextFactory, environs));
+
+        return environs;
+    }
+
+    /**
+     * Every statement has its own counter, either a property named after its line number on the script's coverage
+     * object, or an element of the script's coverage array, in which case the counters are numbered in line order
+     */
+    private Map<Integer, Integer> getCounterIndexes(final ScriptData data) {
+        final Map<Integer, Integer> counterIndexes = Maps.newHashMapWithExpectedSize(data.getNumberOfStatements());
+
+        for (final Integer lineNr : data.getLineNumbersOfAllStatements()) {
+            counterIndexes.put(lineNr, counterIndexes.size());
+        }
+
+        return counterIndexes;
+    }
+
+    private void appendInitializingCode(
+            final StringBuilder buf,
+            final ScriptData data,
+            final String separator,
+            final boolean accumulating) {
+        final String counters = String.format("%s['%s']", coverageVariableName, data.getSourceName());
+
+        buf.append(String.format("%s = window.%s || {};", coverageVariableName, coverageVariableName));
+        buf.append(separator);
+
+        switch (counterStyle) {
+            case ARRAY:
+                // a single allocation that's also bound to a short alias, so the counters don't have to look up the
+                // coverage object and the script's entry on it every time
+                buf.append(String.format("var %s = %s = ", COUNTER_ALIAS_PLACEHOLDER, counters));
+
+                if (accumulating) {
+                    buf.append(counters).append(" || ");
+                }
+
+                buf.append("[");
+
+                for (int i = 0; i < data.getNumberOfStatements(); i++) {
+                    buf.append(i == 0 ? "0" : ",0");
+                }
+
+                buf.append("];");
+                buf.append(separator);
+                break;
+            case HOST:
+                buf.append(String.format("var %s = %s('%s', %d);", COUNTER_ALIAS_PLACEHOLDER,
+                        CoverageCounters.FUNCTION_NAME, data.getSourceName(), data.getNumberOfStatements()));
+                buf.append(separator);
+                break;
+            default:
+                if (accumulating) {
+                    buf.append(String.format("%s = %s || {};", counters, counters));
+                } else {
+                    buf.append(String.format("%s = {};", counters));
+                }
+
+                buf.append(separator);
+
+                for (final Integer i : data.getLineNumbersOfAllStatements()) {
+                    if (accumulating) {
+                        buf.append(String.format("%s[%d] = %s[%d] || 0;", counters, i, counters, i));
+                    } else {
+                        buf.append(String.format("%s[%d] = 0;", counters, i));
+                    }
+
+                    buf.append(separator);
+                }
+        }
+    }
+
+    private String newCounter(final ScriptData data, final Map<Integer, Integer> counterIndexes, final int lineNr) {
+        final String counter;
+
+        switch (counterStyle) {
+            case ARRAY:
+            case HOST:
+                counter = String.format("%s[%d]", COUNTER_ALIAS_PLACEHOLDER, counterIndexes.get(lineNr));
+                break;
+            default:
+                counter = String.format("%s['%s'][%d]", coverageVariableName, data.getSourceName(), lineNr);
+        }
+
+        return lineHitOnly
+                ? String.format("%s || (%s = 1); ", counter, counter)
+                : counter + "++; ";
+    }
+
+    /**
+     * Aliases are global variables, since the top-level code of a script can't have locals of its own without being
+     * wrapped in a function, which would turn its own top-level declarations into locals as well. Every script gets its
+     * own alias, derived from its name, so that nothing has to be kept around to look it up again.
+     */
+    private String getCounterAlias(final String sourceName) {
+        if (!counterStyle.isIndexed()) {
+            return COUNTER_ALIAS_PLACEHOLDER;
+        }
+
+        return "__saga_" + Hashing.sha1().hashString(sourceName, Charsets.UTF_8).toString().substring(0, 16);
+    }
+
+    /**
+     * The source name ends up in single-quoted string literals, the same way {@link StringLiteral#toSource(int)}
+     * would have written it
+     */
+    private String escapeSourceName(final String sourceName) {
+        return ScriptRuntime.escapeString(sourceName, '\'');
     }
 
     private String getFullSourcePath(final HtmlPage htmlPage, final String sourceName) {
@@ -201,32 +556,48 @@ class ScriptInstrumenter implements ScriptPreProcessor {
         return inlineScriptRe.matcher(sourceName).replaceAll("$1__from_$2_$3_to_$4_$5");
     }
 
-    private String handleEvals(final String sourceName) {
-        final Matcher matcher = evalRe.matcher(sourceName);
+    /**
+     * @return whether the script was eval'd or generated (e.g. a string passed to setTimeout)
+     */
+    private boolean isDynamic(final String sourceName) {
+        return evalRe.matcher(sourceName).matches() || nonFileRe.matcher(sourceName).matches();
+    }
 
-        if (matcher.find()) {
-            // assign a unique count to an eval statement because they might have the same name, which is bad for us
-            return sourceName + "(" + evalCounter.getAndIncrement() + ")";
-        }
+    /**
+     * Eval'd and generated scripts are named after their contents, so that running the same code again, in this test
+     * or any other, adds to the same coverage instead of producing yet another entry
+     */
+    private String getDynamicScriptName(final String sourceName, final String sourceCode) {
+        final String kind = evalRe.matcher(sourceName).matches() ? "eval" : "JavaScriptStringJob";
+        final String hash = Hashing.sha1().hashString(sourceCode, Charsets.UTF_8).toString().substring(0, 16);
 
-        return sourceName;
+        return kind + "(" + hash + ")";
     }
 
     private boolean shouldIgnore(final String sourceName) {
-        return ignorePatterns != null && Iterables.any(ignorePatterns, new Predicate<Pattern>() {
-            @Override
-            public boolean apply(final Pattern input) {
-                return input.matcher(sourceName).matches();
-            }
-        });
+        return noInstrumentMatcher != null && noInstrumentMatcher.matches(sourceName);
+    }
+
+    static InstrumentedScriptCache getInstrumentedScriptCache() {
+        return instrumentedScriptCache;
+    }
+
+    /**
+     * Forgets about all the scripts instrumented so far, e.g. between builds run by the same long-lived process
+     */
+    static void clearCaches() {
+        instrumentedScriptCache.clear();
+        dynamicScriptCache.invalidateAll();
+        boundScriptCache.invalidateAll();
+        writtenToDisk.invalidateAll();
     }
 
     public List<ScriptData> getScriptDataList() {
         return scriptDataList;
     }
 
-    public void setIgnorePatterns(final Collection<Pattern> ignorePatterns) {
-        this.ignorePatterns = ignorePatterns;
+    public void setNoInstrumentMatcher(final NoInstrumentMatcher noInstrumentMatcher) {
+        this.noInstrumentMatcher = noInstrumentMatcher;
     }
 
     public void setOutputInstrumentedFiles(final boolean outputInstrumentedFiles) {
@@ -241,10 +612,191 @@ class ScriptInstrumenter implements ScriptPreProcessor {
         this.cacheInstrumentedCode = cacheInstrumentedCode;
     }
 
+    public void setPersistentCache(final InstrumentationCache persistentCache) {
+        this.persistentCache = persistentCache;
+    }
+
+    public void setPreserveSourceFormatting(final boolean preserveSourceFormatting) {
+        this.preserveSourceFormatting = preserveSourceFormatting;
+    }
+
+    public void setCounterStyle(final CounterStyle counterStyle) {
+        this.counterStyle = counterStyle;
+    }
+
+    /**
+     * Instead of counting, probes only record that their statement was executed. Once they have, all they do is
+     * read the counter back, so hot loops pay next to nothing for them.
+     */
+    public void setLineHitOnly(final boolean lineHitOnly) {
+        this.lineHitOnly = lineHitOnly;
+    }
+
+    private static boolean isExecutableBlock(final AstNode node) {
+        final AstNode parent = node.getParent();
+        if (parent == null) {
+            return false;
+        }
+
+        final int type = node.getType();
+        final int parentType = parent.getType();
+
+        return type == SWITCH
+                || type == FOR
+                || type == DO
+                || type == WHILE
+                || type == CONTINUE
+                || type == BREAK
+                || type == TRY
+                || type == THROW
+                || type == CASE
+                || type == IF
+                || type == EXPR_RESULT
+                || type == EXPR_VOID
+                || type == RETURN
+                || (type == FUNCTION && (parentType == SCRIPT || parentType == BLOCK))
+                || (type == VAR && node.getClass() == VariableDeclaration.class && parentType != FOR);
+    }
+
+    private static class ParserEnvironment {
+
+        private final ContextFactory contextFactory;
+        private final CompilerEnvirons environs;
+
+        private ParserEnvironment(final ContextFactory contextFactory, final CompilerEnvirons environs) {
+            this.contextFactory = contextFactory;
+            this.environs = environs;
+        }
+
+    }
+
+    /**
+     * A piece of code to be inserted into the original source at the given offset, optionally followed by the
+     * counter of the statement on the given line
+     */
+    private static class Splice implements Comparable<Splice> {
+
+        private static final int NO_COUNTER = -1;
+
+        private final int offset;
+        private final boolean closing;
+        private final int sequence;
+        private final String text;
+        private final int lineNr;
+
+        private Splice(final int offset, final boolean closing, final int sequence, final String text,
+                final int lineNr) {
+            this.offset = offset;
+            this.closing = closing;
+            this.sequence = sequence;
+            this.text = text;
+            this.lineNr = lineNr;
+        }
+
+        /**
+         * Splices are ordered by offset. At the same offset, closing braces go first, since they always belong to
+         * a statement that ends right where the next one starts; otherwise, the order they were recorded in (outer
+         * statements are visited first) is kept.
+         */
+        @Override
+        public int compareTo(final Splice other) {
+            if (offset != other.offset) {
+                return offset < other.offset ? -1 : 1;
+            }
+
+            if (closing != other.closing) {
+                return closing ? -1 : 1;
+            }
+
+            return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+        }
+
+    }
+
+    /**
+     * Decides where the counters go the same way {@link InstrumentingVisitor} does, but leaves the tree alone
+     */
+    private class SplicingVisitor implements NodeVisitor {
+
+        private final ScriptData data;
+        private final List<Splice> splices = Lists.newArrayList();
+
+        public SplicingVisitor(final ScriptData data) {
+            this.data = data;
+        }
+
+        @Override
+        public boolean visit(final AstNode node) {
+            if (isExecutableBlock(node)) {
+                addSplicesFor(node);
+            }
+
+            return true;
+        }
+
+        private void addSplicesFor(final AstNode node) {
+            final AstNode parent = node.getParent();
+
+            final int type = node.getType();
+            final int parentType = parent.getType();
+
+            if (type == CASE) {
+                final SwitchCase switchCase = (SwitchCase) node;
+
+                if (switchCase.getStatements() != null) {
+                    for (final AstNode statement : switchCase.getStatements()) {
+                        final int lineNr = statement.getLineno();
+                        data.addExecutableLine(lineNr, switchCase.getLength());
+                        insertCounterBefore(statement, lineNr);
+                    }
+                }
+            } else if (type == IF && parentType == IF) {
+                final IfStatement ifStatement = (IfStatement) parent;
+
+                // see InstrumentingVisitor#flattenElseIf
+                if (ifStatement.getElsePart() == node) {
+                    data.addExecutableLine(node.getLineno(), node.getLength());
+                    wrap(node);
+                }
+            } else if (parentType != CASE) {
+                // issue #54
+                if (parent.getClass() == LabeledStatement.class) {
+                    return;
+                }
+
+                if (parent.hasChildren()) {
+                    insertCounterBefore(node, node.getLineno());
+                } else {
+                    // bodies of if, else, while, do, for without {} around them
+                    wrap(node);
+                }
+
+                data.addExecutableLine(node.getLineno(), node.getLength());
+            }
+        }
+
+        private void wrap(final AstNode node) {
+            final int start = node.getAbsolutePosition();
+
+            splices.add(new Splice(start, false, splices.size(), "{", node.getLineno()));
+            splices.add(new Splice(start + node.getLength(), true, splices.size(), "}", Splice.NO_COUNTER));
+        }
+
+        private void insertCounterBefore(final AstNode node, final int lineNr) {
+            splices.add(new Splice(node.getAbsolutePosition(), false, splices.size(), "", lineNr));
+        }
+
+        List<Splice> getSplices() {
+            return splices;
+        }
+
+    }
+
     private class InstrumentingVisitor implements NodeVisitor {
 
         private final ScriptData data;
         private final int lineNumberOffset;
+        private final List<NumberLiteral> counters = Lists.newArrayList();
 
         public InstrumentingVisitor(final ScriptData data, final int lineNumberOffset) {
             this.data = data;
@@ -300,32 +852,6 @@ class ScriptInstrumenter implements ScriptPreProcessor {
             return Double.toString(literal.getNumber());
         }
 
-        private boolean isExecutableBlock(final AstNode node) {
-            final AstNode parent = node.getParent();
-            if (parent == null) {
-                return false;
-            }
-
-            final int type = node.getType();
-            final int parentType = parent.getType();
-
-            return type == SWITCH
-                    || type == FOR
-                    || type == DO
-                    || type == WHILE
-                    || type == CONTINUE
-                    || type == BREAK
-                    || type == TRY
-                    || type == THROW
-                    || type == CASE
-                    || type == IF
-                    || type == EXPR_RESULT
-                    || type == EXPR_VOID
-                    || type == RETURN
-                    || (type == FUNCTION && (parentType == SCRIPT || parentType == BLOCK))
-                    || (type == VAR && node.getClass() == VariableDeclaration.class && parentType != FOR);
-        }
-
         private void addInstrumentationSnippetFor(final AstNode node) {
             final AstNode parent = node.getParent();
 
@@ -485,39 +1011,79 @@ class ScriptInstrumenter implements ScriptPreProcessor {
 
         private AstNode newInstrumentationNode(final int lineNr) {
             final ExpressionStatement instrumentationNode = new ExpressionStatement();
-            final UnaryExpression inc = new UnaryExpression();
 
-            inc.setIsPostfix(true);
-            inc.setOperator(Token.INC);
+            if (lineHitOnly) {
+                final Assignment hit = new Assignment();
+                hit.setOperator(Token.ASSIGN);
+                hit.setLeft(newCounter(lineNr));
+                hit.setRight(newNumberLiteral(1));
+
+                final ParenthesizedExpression parenthesizedHit = new ParenthesizedExpression();
+                parenthesizedHit.setExpression(hit);
+
+                final InfixExpression hitOnce = new InfixExpression();
+                hitOnce.setOperator(Token.OR);
+                hitOnce.setLeft(newCounter(lineNr));
+                hitOnce.setRight(parenthesizedHit);
+
+                instrumentationNode.setExpression(hitOnce);
+            } else {
+                final UnaryExpression inc = new UnaryExpression();
+
+                inc.setIsPostfix(true);
+                inc.setOperator(Token.INC);
+                inc.setOperand(newCounter(lineNr));
 
+                instrumentationNode.setExpression(inc);
+            }
+
+            instrumentationNode.setHasResult();
+
+            return instrumentationNode;
+        }
+
+        private AstNode newCounter(final int lineNr) {
             final ElementGet outer = new ElementGet();
-            final ElementGet inner = new ElementGet();
 
-            outer.setTarget(inner);
+            if (counterStyle.isIndexed()) {
+                final Name alias = new Name();
+                alias.setIdentifier(COUNTER_ALIAS_PLACEHOLDER);
 
-            final Name covDataVar = new Name();
-            covDataVar.setIdentifier(coverageVariableName);
+                outer.setTarget(alias);
+            } else {
+                final ElementGet inner = new ElementGet();
 
-            inner.setTarget(covDataVar);
+                final Name covDataVar = new Name();
+                covDataVar.setIdentifier(coverageVariableName);
 
-            final StringLiteral fileName = new StringLiteral();
-            fileName.setValue(data.getSourceName());
-            fileName.setQuoteCharacter('\'');
+                inner.setTarget(covDataVar);
 
-            inner.setElement(fileName);
+                final StringLiteral fileName = new StringLiteral();
+                fileName.setValue(data.getSourceName());
+                fileName.setQuoteCharacter('\'');
 
-            final NumberLiteral index = new NumberLiteral();
-            index.setNumber(lineNr);
-            index.setValue(Integer.toString(lineNr));
+                inner.setElement(fileName);
+
+                outer.setTarget(inner);
+            }
+
+            final NumberLiteral index = newNumberLiteral(lineNr);
 
             outer.setElement(index);
+            counters.add(index);
 
-            inc.setOperand(outer);
+            return outer;
+        }
 
-            instrumentationNode.setExpression(inc);
-            instrumentationNode.setHasResult();
+        private NumberLiteral newNumberLiteral(final int value) {
+            final NumberLiteral literal = new NumberLiteral();
+            literal.setNumber(value);
+            literal.setValue(Integer.toString(value));
+            return literal;
+        }
 
-            return instrumentationNode;
+        List<NumberLiteral> getCounters() {
+            return counters;
         }
 
     }
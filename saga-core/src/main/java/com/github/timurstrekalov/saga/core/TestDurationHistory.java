@@ -0,0 +1,163 @@
+package com.github.timurstrekalov.saga.core;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.io.Closeables;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Remembers how long every test took to run in a properties file, so that the next run can start the longest tests
+ * first. Otherwise, a slow test that happens to come last keeps one thread busy long after the others have run out of
+ * work. The tests are keyed by their path relative to the base directory, and the duration kept for each is the
+ * average of the last known duration and the new one, which smooths out the occasional slow run.
+ */
+class TestDurationHistory {
+
+    static final String FILE_NAME = "test-durations.properties";
+
+    private static final Logger logger = LoggerFactory.getLogger(TestDurationHistory.class);
+
+    private final File baseDir;
+    private final File file;
+    private final ConcurrentMap<String, Long> durations = Maps.newConcurrentMap();
+
+    TestDurationHistory(final File baseDir, final File file) {
+        this.baseDir = baseDir;
+        this.file = file;
+    }
+
+    void load() throws IOException {
+        if (!file.exists()) {
+            return;
+        }
+
+        final Properties properties = new Properties();
+        final InputStream in = new BufferedInputStream(new FileInputStream(file));
+
+        try {
+            properties.load(in);
+        } finally {
+            Closeables.closeQuietly(in);
+        }
+
+        for (final String key : properties.stringPropertyNames()) {
+            try {
+                durations.put(key, Long.valueOf(properties.getProperty(key)));
+            } catch (final NumberFormatException e) {
+                logger.debug("Ignoring invalid duration of {}: {}", key, properties.getProperty(key));
+            }
+        }
+    }
+
+    /**
+     * Writes the durations of the given tests, dropping the ones of tests that don't exist anymore
+     */
+    void save(final Collection<File> tests) throws IOException {
+        final Properties properties = new Properties();
+
+        for (final File test : tests) {
+            final Long duration = durations.get(getKey(test));
+
+            if (duration != null) {
+                properties.setProperty(getKey(test), String.valueOf(duration));
+            }
+        }
+
+        final OutputStream out = new BufferedOutputStream(new FileOutputStream(file));
+
+        try {
+            properties.store(out, "Test durations in milliseconds, used to run the longest tests first");
+            out.close();
+        } finally {
+            Closeables.closeQuietly(out);
+        }
+    }
+
+    void record(final File test, final long duration) {
+        final String key = getKey(test);
+        final Long previousDuration = durations.get(key);
+
+        durations.put(key, previousDuration == null ? duration : (previousDuration + duration) / 2);
+    }
+
+    boolean isEmpty() {
+        return durations.isEmpty();
+    }
+
+    /**
+     * @return the tests sorted by their known duration, longest first. Tests that haven't been run before are expected
+     * to take the average time, and the tests with the same duration keep their order
+     */
+    List<File> sortLongestFirst(final List<File> tests) {
+        if (isEmpty()) {
+            return tests;
+        }
+
+        final long averageDuration = getAverageDuration();
+        final List<File> result = Lists.newArrayList(tests);
+
+        Collections.sort(result, new Comparator<File>() {
+            @Override
+            public int compare(final File t1, final File t2) {
+                return Long.valueOf(estimate(t2, averageDuration)).compareTo(estimate(t1, averageDuration));
+            }
+        });
+
+        return result;
+    }
+
+    /**
+     * Works out when the last test would finish if every test took as long as last time and the tests were picked up
+     * in the given order by whichever thread frees up first
+     *
+     * @return the predicted wall time of the run in milliseconds, or -1 if there's no history to go by
+     */
+    long predictMakespan(final List<File> tests, final int threadCount) {
+        if (isEmpty() || tests.isEmpty()) {
+            return -1;
+        }
+
+        final long averageDuration = getAverageDuration();
+        final PriorityQueue<Long> threadFinishTimes = new PriorityQueue<Long>(threadCount);
+
+        for (int i = 0; i < threadCount; i++) {
+            threadFinishTimes.add(0L);
+        }
+
+        long makespan = 0;
+
+        for (final File test : tests) {
+            final long finishTime = threadFinishTimes.poll() + estimate(test, averageDuration);
+
+            threadFinishTimes.add(finishTime);
+            makespan = Math.max(makespan, finishTime);
+        }
+
+        return makespan;
+    }
+
+    private long estimate(final File test, final long averageDuration) {
+        final Long duration = durations.get(getKey(test));
+        return duration != null ? duration : averageDuration;
+    }
+
+    private long getAverageDuration() {
+        long sum = 0;
+
+        for (final Long duration : durations.values()) {
+            sum += duration;
+        }
+
+        return sum / durations.size();
+    }
+
+    private String getKey(final File test) {
+        return baseDir.toURI().relativize(test.toURI()).getPath();
+    }
+
+}
@@ -0,0 +1,182 @@
+package com.github.timurstrekalov.saga.core;
+
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Runs tests a given number at a time, handing the stats of every test to the listener as soon as it finishes. The
+ * listener is called from the thread that has run the test.
+ * <p>
+ * A test that has timed out is normally stopped by its scripts being aborted, but a test can also get stuck outside of
+ * the interpreter, e.g. in a synchronous XHR, a page load or a blocking host call. If a test is still running a grace
+ * period past its timeout, its thread is interrupted and abandoned, a new thread takes its slot, and the test is
+ * reported as timed out with no coverage.
+ */
+class TestScheduler {
+
+    private static final Logger logger = LoggerFactory.getLogger(TestScheduler.class);
+
+    private final int threadCount;
+    private final long testTimeout;
+    private final long gracePeriod;
+
+    /**
+     * @param testTimeout the timeout of a test in milliseconds, 0 for none, in which case tests are never abandoned
+     * @param gracePeriod how long a test may keep running past its timeout, e.g. collecting its coverage, before its
+     *                    thread is abandoned
+     */
+    TestScheduler(final int threadCount, final long testTimeout, final long gracePeriod) {
+        this.threadCount = threadCount;
+        this.testTimeout = testTimeout;
+        this.gracePeriod = gracePeriod;
+    }
+
+    void run(final List<File> tests, final TestRunner testRunner, final RunStatsListener runStatsListener)
+            throws IOException {
+        // abandoned threads might never finish, so they mustn't keep the JVM from exiting
+        final ExecutorService executorService = Executors.newCachedThreadPool(new ThreadFactoryBuilder()
+                .setNameFormat("saga-test-%d")
+                .setDaemon(true)
+                .build());
+        final CompletionService<Void> completionService = new ExecutorCompletionService<Void>(executorService);
+        final Map<Future<Void>, Attempt> runningTests = Maps.newHashMap();
+        final Iterator<File> pendingTests = tests.iterator();
+
+        try {
+            while (pendingTests.hasNext() || !runningTests.isEmpty()) {
+                while (pendingTests.hasNext() && runningTests.size() < threadCount) {
+                    final Attempt attempt = new Attempt(pendingTests.next(), testRunner, runStatsListener);
+                    runningTests.put(completionService.submit(attempt), attempt);
+                }
+
+                final Future<Void> future = testTimeout > 0
+                        ? completionService.poll(getTimeUntilFirstAbandonment(runningTests), TimeUnit.MILLISECONDS)
+                        : completionService.take();
+
+                // abandoned tests have been taken care of already, but their cancelled futures still turn up here
+                final Attempt attempt = future != null ? runningTests.remove(future) : null;
+
+                if (attempt != null) {
+                    try {
+                        future.get();
+                    } catch (final ExecutionException e) {
+                        logger.warn("Error running test {}: {}", attempt.test.getAbsolutePath(),
+                                e.getCause().getMessage());
+                        logger.debug(e.getMessage(), e);
+                    }
+                }
+
+                abandonStuckTests(runningTests);
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while running tests");
+        } finally {
+            executorService.shutdownNow();
+        }
+    }
+
+    private long getTimeUntilFirstAbandonment(final Map<Future<Void>, Attempt> runningTests) {
+        long earliestStartTime = Long.MAX_VALUE;
+
+        for (final Attempt attempt : runningTests.values()) {
+            earliestStartTime = Math.min(earliestStartTime, attempt.startTime);
+        }
+
+        return Math.max(earliestStartTime + testTimeout + gracePeriod - System.currentTimeMillis(), 1);
+    }
+
+    private void abandonStuckTests(final Map<Future<Void>, Attempt> runningTests) throws IOException {
+        if (testTimeout <= 0) {
+            return;
+        }
+
+        final long now = System.currentTimeMillis();
+        final Iterator<Map.Entry<Future<Void>, Attempt>> it = runningTests.entrySet().iterator();
+
+        while (it.hasNext()) {
+            final Map.Entry<Future<Void>, Attempt> entry = it.next();
+            final Attempt attempt = entry.getValue();
+            final long duration = now - attempt.startTime;
+
+            if (duration >= testTimeout + gracePeriod && attempt.reported.compareAndSet(false, true)) {
+                logger.warn("Test {} is stuck {} ms after its timeout, abandoning it without coverage", attempt.test,
+                        duration - testTimeout);
+
+                it.remove();
+                entry.getKey().cancel(true);
+
+                final RunStats runStats = new RunStats(attempt.test);
+                runStats.setDuration(duration);
+                runStats.setTimedOut(true);
+                attempt.runStatsListener.testFinished(runStats);
+            }
+        }
+    }
+
+    interface TestRunner {
+
+        /**
+         * @return the stats of the test, or {@link RunStats#EMPTY} if it didn't actually run
+         */
+        RunStats run(File test, Attempt attempt) throws IOException;
+
+    }
+
+    /**
+     * A single run of a test. Exactly one of the attempt and the scheduler, when it abandons the attempt, reports the
+     * test to the listener, whichever gets there first.
+     */
+    static class Attempt implements Callable<Void> {
+
+        private final File test;
+        private final TestRunner testRunner;
+        private final RunStatsListener runStatsListener;
+
+        /**
+         * Set on submission, which is when the test gets a thread of its own
+         */
+        private final long startTime = System.currentTimeMillis();
+        private final AtomicBoolean reported = new AtomicBoolean();
+
+        private Attempt(final File test, final TestRunner testRunner, final RunStatsListener runStatsListener) {
+            this.test = test;
+            this.testRunner = testRunner;
+            this.runStatsListener = runStatsListener;
+        }
+
+        long getStartTime() {
+            return startTime;
+        }
+
+        /**
+         * @return whether the scheduler has given up on the test, in which case its stats are going to be thrown away
+         */
+        boolean isAbandoned() {
+            return reported.get();
+        }
+
+        @Override
+        public Void call() throws IOException {
+            final RunStats runStats = testRunner.run(test, this);
+
+            if (reported.compareAndSet(false, true)) {
+                runStatsListener.testFinished(runStats);
+            }
+
+            return null;
+        }
+
+    }
+
+}
@@ -1,7 +1,5 @@
 package com.github.timurstrekalov.saga.core;
 
-import com.google.common.base.Function;
-
 class Util {
 
     private static final int[] red = {219, 75, 75};
@@ -12,16 +10,6 @@ class Util {
         return (int) ((double) totalExecuted / totalStatements * 100);
     }
 
-    static <T> int sum(final Iterable<T> objects, final Function<T, Integer> transformer) {
-        int sum = 0;
-
-        for (final T t : objects) {
-            sum += transformer.apply(t);
-        }
-
-        return sum;
-    }
-
     static String getColor(final int coverage) {
         final int[] from = coverage < 50 ? red : yellow;
         final int[] to = coverage < 50 ? yellow : green;
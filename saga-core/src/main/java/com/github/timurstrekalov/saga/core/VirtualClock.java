@@ -0,0 +1,291 @@
+package com.github.timurstrekalov.saga.core;
+
+import com.gargoylesoftware.htmlunit.Page;
+import com.gargoylesoftware.htmlunit.WebWindow;
+import com.gargoylesoftware.htmlunit.html.HtmlPage;
+import com.google.common.collect.Maps;
+import net.sourceforge.htmlunit.corejs.javascript.*;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Replaces {@code setTimeout}, {@code setInterval}, their {@code clear*} counterparts and {@code Date} in every window
+ * of a client with versions that run on a clock that can be moved forward. Instead of sleeping until the next timer is
+ * due, the test thread jumps the clock to it whenever there's nothing else to do, so debounces and animations run
+ * without the wait. Time still passes normally in between, the clock is merely ahead of the real one by the sum of
+ * the jumps, which keeps busy-waiting loops and scripts that measure how long something took working.
+ */
+class VirtualClock {
+
+    /**
+     * Same as Firefox, and keeps a zero-delay interval from running forever without the clock ever moving
+     */
+    private static final long MIN_INTERVAL = 10;
+
+    private static final String DATE_SHIM =
+            "(function (global, now) {\n" +
+            "    var RealDate = global.Date;\n" +
+            "    var VirtualDate = function (a, b, c, d, e, f, g) {\n" +
+            "        if (!(this instanceof VirtualDate)) {\n" +
+            "            return new RealDate(now()).toString();\n" +
+            "        }\n" +
+            "        switch (arguments.length) {\n" +
+            "            case 0: return new RealDate(now());\n" +
+            "            case 1: return new RealDate(a);\n" +
+            "            case 2: return new RealDate(a, b);\n" +
+            "            case 3: return new RealDate(a, b, c);\n" +
+            "            case 4: return new RealDate(a, b, c, d);\n" +
+            "            case 5: return new RealDate(a, b, c, d, e);\n" +
+            "            case 6: return new RealDate(a, b, c, d, e, f);\n" +
+            "            default: return new RealDate(a, b, c, d, e, f, g);\n" +
+            "        }\n" +
+            "    };\n" +
+            "    VirtualDate.prototype = RealDate.prototype;\n" +
+            "    VirtualDate.parse = RealDate.parse;\n" +
+            "    VirtualDate.UTC = RealDate.UTC;\n" +
+            "    VirtualDate.now = now;\n" +
+            "    global.Date = VirtualDate;\n" +
+            "})";
+
+    private final PriorityQueue<Timer> timers = new PriorityQueue<Timer>();
+    private final Map<Integer, Timer> timersById = Maps.newHashMap();
+
+    private volatile long offset;
+    private int lastTimerId;
+    private long lastSequence;
+
+    long now() {
+        return System.currentTimeMillis() + offset;
+    }
+
+    /**
+     * @return how far ahead of the real clock this one is, in milliseconds
+     */
+    long getOffset() {
+        return offset;
+    }
+
+    /**
+     * Sets the clock back to the real time and forgets all timers, for the next test
+     */
+    synchronized void reset() {
+        offset = 0;
+        timers.clear();
+        timersById.clear();
+    }
+
+    synchronized int getPendingTimerCount() {
+        return timers.size();
+    }
+
+    /**
+     * @param window the window the timers are run in, or null to run them in the scope itself
+     */
+    void register(final Context cx, final ScriptableObject scope, final WebWindow window) {
+        scope.defineProperty("setTimeout", new SchedulingFunction(scope, window, false), ScriptableObject.DONTENUM);
+        scope.defineProperty("setInterval", new SchedulingFunction(scope, window, true), ScriptableObject.DONTENUM);
+        scope.defineProperty("clearTimeout", new ClearingFunction(), ScriptableObject.DONTENUM);
+        scope.defineProperty("clearInterval", new ClearingFunction(), ScriptableObject.DONTENUM);
+
+        final Function installDateShim = (Function) cx.evaluateString(scope, DATE_SHIM, "saga-virtual-clock.js", 1, null);
+        installDateShim.call(cx, scope, scope, new Object[] {scope, new NowFunction()});
+    }
+
+    /**
+     * Runs the earliest timer if it's due
+     *
+     * @return whether a timer has been run
+     */
+    boolean runNextDueTimer() {
+        final Timer timer;
+
+        synchronized (this) {
+            timer = timers.peek();
+
+            if (timer == null || timer.dueTime > now()) {
+                return false;
+            }
+
+            timers.poll();
+
+            if (timer.interval > 0) {
+                timer.dueTime += timer.interval;
+                timer.sequence = ++lastSequence;
+                timers.add(timer);
+            } else {
+                timersById.remove(timer.id);
+            }
+        }
+
+        // outside of the lock, since the timer is likely to schedule others
+        timer.run();
+        return true;
+    }
+
+    /**
+     * Moves the clock forward to when the earliest timer is due, unless that's beyond the horizon
+     *
+     * @param maxOffset how far ahead of the real clock this one may get, in milliseconds
+     * @return whether there's a timer that's due now
+     */
+    synchronized boolean advanceToNextTimer(final long maxOffset) {
+        final Timer timer = timers.peek();
+
+        if (timer == null) {
+            return false;
+        }
+
+        final long gap = timer.dueTime - now();
+
+        if (gap > 0) {
+            if (offset + gap > maxOffset) {
+                return false;
+            }
+
+            offset += gap;
+        }
+
+        return true;
+    }
+
+    private synchronized int schedule(final Timer timer, final long delay) {
+        timer.id = ++lastTimerId;
+        timer.sequence = ++lastSequence;
+        timer.dueTime = now() + delay;
+
+        timers.add(timer);
+        timersById.put(timer.id, timer);
+
+        return timer.id;
+    }
+
+    private synchronized void cancel(final int id) {
+        final Timer timer = timersById.remove(id);
+
+        if (timer != null) {
+            timers.remove(timer);
+        }
+    }
+
+    private class SchedulingFunction extends BaseFunction {
+
+        private final ScriptableObject scope;
+        private final WebWindow window;
+        private final boolean repeating;
+
+        private SchedulingFunction(final ScriptableObject scope, final WebWindow window, final boolean repeating) {
+            this.scope = scope;
+            this.window = window;
+            this.repeating = repeating;
+        }
+
+        @Override
+        public Object call(final Context cx, final Scriptable callScope, final Scriptable thisObj, final Object[] args) {
+            if (args.length == 0) {
+                return Undefined.instance;
+            }
+
+            final long delay = args.length > 1 ? Math.max((long) Context.toNumber(args[1]), 0) : 0;
+            final Object[] functionArgs = args.length > 2 ? Arrays.copyOfRange(args, 2, args.length) : new Object[0];
+            final Page page = window != null ? window.getEnclosedPage() : null;
+
+            final Timer timer = args[0] instanceof Function
+                    ? new Timer(scope, page, (Function) args[0], functionArgs, null)
+                    : new Timer(scope, page, null, functionArgs, Context.toString(args[0]));
+
+            if (repeating) {
+                timer.interval = Math.max(delay, MIN_INTERVAL);
+            }
+
+            return schedule(timer, repeating ? timer.interval : delay);
+        }
+
+    }
+
+    private class ClearingFunction extends BaseFunction {
+
+        @Override
+        public Object call(final Context cx, final Scriptable scope, final Scriptable thisObj, final Object[] args) {
+            if (args.length > 0) {
+                cancel((int) Context.toNumber(args[0]));
+            }
+
+            return Undefined.instance;
+        }
+
+    }
+
+    private class NowFunction extends BaseFunction {
+
+        @Override
+        public Object call(final Context cx, final Scriptable scope, final Scriptable thisObj, final Object[] args) {
+            return (double) now();
+        }
+
+    }
+
+    private static class Timer implements Comparable<Timer> {
+
+        private final ScriptableObject scope;
+        private final Page page;
+        private final Function function;
+        private final Object[] args;
+        private final String code;
+
+        private int id;
+        private long sequence;
+        private long dueTime;
+        private long interval;
+
+        private Timer(final ScriptableObject scope, final Page page, final Function function, final Object[] args,
+                final String code) {
+            this.scope = scope;
+            this.page = page;
+            this.function = function;
+            this.args = args;
+            this.code = code;
+        }
+
+        private void run() {
+            if (page instanceof HtmlPage) {
+                final HtmlPage htmlPage = (HtmlPage) page;
+
+                if (htmlPage.getEnclosingWindow().getEnclosedPage() != htmlPage) {
+                    // the window has moved on to another page since
+                    return;
+                }
+
+                if (function != null) {
+                    htmlPage.executeJavaScriptFunctionIfPossible(function, scope, args, htmlPage.getDocumentElement());
+                } else {
+                    htmlPage.executeJavaScript(code);
+                }
+            } else {
+                final Context cx = Context.enter();
+
+                try {
+                    if (function != null) {
+                        function.call(cx, scope, scope, args);
+                    } else {
+                        cx.evaluateString(scope, code, "timer", 1, null);
+                    }
+                } finally {
+                    Context.exit();
+                }
+            }
+        }
+
+        @Override
+        public int compareTo(final Timer other) {
+            if (dueTime != other.dueTime) {
+                return dueTime < other.dueTime ? -1 : 1;
+            }
+
+            return sequence < other.sequence ? -1 : sequence == other.sequence ? 0 : 1;
+        }
+
+    }
+
+}
@@ -0,0 +1,244 @@
+package com.github.timurstrekalov.saga.core;
+
+import com.gargoylesoftware.htmlunit.WebClient;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Hands out warmed up web clients to the test threads. Every client is reset after a test (all of its windows are
+ * closed, which releases the pages along with their JavaScript scopes, and its cookies are cleared) and replaced with a
+ * fresh one once it has run a given number of tests or the threads using it have allocated a given number of bytes, so
+ * that whatever HtmlUnit holds on to doesn't pile up over a long run.
+ */
+class WebClientPool {
+
+    private static final Logger logger = LoggerFactory.getLogger(WebClientPool.class);
+    private static final ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+
+    private final BlockingQueue<PooledClient> idleClients = new LinkedBlockingQueue<PooledClient>();
+    private final Map<WebClient, PooledClient> borrowedClients = Maps.newIdentityHashMap();
+    /**
+     * Only the stats of every client ever created, so that retired clients can be garbage collected right away
+     */
+    private final List<ClientStats> allClientStats = Lists.newArrayList();
+
+    private final int maxTestsPerClient;
+    private final long maxBytesPerClient;
+    private final boolean virtualClock;
+
+    /**
+     * @param size the number of clients to create right away
+     * @param maxTestsPerClient the number of tests after which a client is retired, 0 for no limit
+     * @param maxBytesPerClient the number of bytes allocated while running tests after which a client is retired, 0 for
+     *                          no limit (only supported on JVMs that can measure allocations per thread)
+     * @param virtualClock whether the clients run timers on a {@link VirtualClock}
+     */
+    WebClientPool(final int size, final int maxTestsPerClient, final long maxBytesPerClient,
+            final boolean virtualClock) {
+        Preconditions.checkArgument(maxTestsPerClient >= 0, "Maximum number of tests per client must not be negative");
+        Preconditions.checkArgument(maxBytesPerClient >= 0, "Maximum number of bytes per client must not be negative");
+
+        this.maxTestsPerClient = maxTestsPerClient;
+        this.maxBytesPerClient = maxBytesPerClient;
+        this.virtualClock = virtualClock;
+
+        if (maxBytesPerClient > 0 && getAllocatedBytes() < 0) {
+            logger.warn("This JVM can't measure allocations per thread, clients won't be retired by allocated bytes");
+        }
+
+        for (int i = 0; i < size; i++) {
+            idleClients.add(newClient());
+        }
+    }
+
+    WebClient borrow() {
+        PooledClient pooledClient = idleClients.poll();
+
+        if (pooledClient == null) {
+            pooledClient = newClient();
+        }
+
+        pooledClient.allocatedBytesAtBorrow = getAllocatedBytes();
+        final WebClient client = pooledClient.client;
+
+        synchronized (borrowedClients) {
+            borrowedClients.put(client, pooledClient);
+        }
+
+        return client;
+    }
+
+    void release(final WebClient client) {
+        release(client, false);
+    }
+
+    /**
+     * Resets the client and puts it back into the pool, or retires it if it has had enough
+     *
+     * @param retire whether to retire the client regardless, e.g. because it might still be running scripts
+     */
+    void release(final WebClient client, final boolean retire) {
+        final PooledClient pooledClient;
+
+        synchronized (borrowedClients) {
+            pooledClient = borrowedClients.remove(client);
+        }
+
+        Preconditions.checkArgument(pooledClient != null, "Client doesn't belong to the pool");
+
+        final ClientStats stats = pooledClient.stats;
+        stats.testsRun++;
+
+        final long allocatedBytes = getAllocatedBytes();
+
+        if (allocatedBytes >= 0 && pooledClient.allocatedBytesAtBorrow >= 0) {
+            stats.allocatedBytes += allocatedBytes - pooledClient.allocatedBytesAtBorrow;
+        }
+
+        if (retire) {
+            retire(pooledClient, "after a test that didn't finish in time");
+        } else if (maxTestsPerClient > 0 && stats.testsRun >= maxTestsPerClient) {
+            retire(pooledClient, "after " + stats.testsRun + " tests");
+        } else if (maxBytesPerClient > 0 && stats.allocatedBytes >= maxBytesPerClient) {
+            retire(pooledClient, "after allocating " + stats.allocatedBytes / 1024 / 1024 + " MB");
+        } else {
+            try {
+                reset(client);
+                idleClients.add(pooledClient);
+            } catch (final RuntimeException e) {
+                logger.debug(e.getMessage(), e);
+                retire(pooledClient, "because it couldn't be reset: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Closes the idle clients, as well as the ones still borrowed by tests that didn't finish, and logs how much each
+     * client has been used
+     */
+    void close() {
+        PooledClient pooledClient;
+
+        while ((pooledClient = idleClients.poll()) != null) {
+            closeQuietly(pooledClient.client);
+        }
+
+        synchronized (borrowedClients) {
+            for (final WebClient client : borrowedClients.keySet()) {
+                closeQuietly(client);
+            }
+        }
+
+        synchronized (allClientStats) {
+            for (final ClientStats c : allClientStats) {
+                logger.info("Web client #{}: {} tests, {} MB allocated{}", new Object[] {
+                        c.id,
+                        c.testsRun,
+                        c.allocatedBytes / 1024 / 1024,
+                        c.retired ? ", retired" : ""
+                });
+            }
+        }
+    }
+
+    private PooledClient newClient() {
+        final ClientStats stats;
+
+        synchronized (allClientStats) {
+            stats = new ClientStats(allClientStats.size() + 1);
+            allClientStats.add(stats);
+        }
+
+        return new PooledClient(stats, SagaWebClient.newWebClient(virtualClock));
+    }
+
+    /**
+     * Closes the client and drops the pool's last reference to it, along with its engine, counters and caches
+     */
+    private void retire(final PooledClient pooledClient, final String reason) {
+        logger.debug("Retiring web client #{} {}", pooledClient.stats.id, reason);
+
+        pooledClient.stats.retired = true;
+        closeQuietly(pooledClient.client);
+        pooledClient.client = null;
+    }
+
+    private static void reset(final WebClient client) {
+        client.setScriptPreProcessor(null);
+        client.closeAllWindows();
+        client.getCookieManager().clearCookies();
+
+        final SagaJavaScriptEngine engine = (SagaJavaScriptEngine) client.getJavaScriptEngine();
+        engine.getCoverageCounters().clear();
+
+        if (engine.getVirtualClock() != null) {
+            engine.getVirtualClock().reset();
+        }
+    }
+
+    private static void closeQuietly(final WebClient client) {
+        try {
+            client.closeAllWindows();
+        } catch (final RuntimeException e) {
+            logger.debug(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * @return the number of bytes allocated by the current thread so far, or -1 if the JVM can't tell
+     */
+    private static long getAllocatedBytes() {
+        if (threadMXBean instanceof com.sun.management.ThreadMXBean) {
+            final com.sun.management.ThreadMXBean sunThreadMXBean = (com.sun.management.ThreadMXBean) threadMXBean;
+
+            if (sunThreadMXBean.isThreadAllocatedMemorySupported() && sunThreadMXBean.isThreadAllocatedMemoryEnabled()) {
+                return sunThreadMXBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+            }
+        }
+
+        return -1;
+    }
+
+    private static class PooledClient {
+
+        private final ClientStats stats;
+
+        /**
+         * null once the client has been retired
+         */
+        private WebClient client;
+
+        private long allocatedBytesAtBorrow;
+
+        private PooledClient(final ClientStats stats, final WebClient client) {
+            this.stats = stats;
+            this.client = client;
+        }
+
+    }
+
+    private static class ClientStats {
+
+        private final int id;
+
+        private int testsRun;
+        private long allocatedBytes;
+        private boolean retired;
+
+        private ClientStats(final int id) {
+            this.id = id;
+        }
+
+    }
+
+}
@@ -0,0 +1,113 @@
+package com.github.timurstrekalov.saga.core;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.Files;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.Channels;
+
+import static org.junit.Assert.*;
+
+public class BinaryCoverageTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void hitsAreReadBackAsWritten() throws IOException {
+        final File file = write(
+                new FileStats("/a.js", new LineIndex("// a\nfoo();\nbar();"), new int[] {-1, 0, 1000000}, true),
+                new FileStats("page.html__from_1_2_to_3_4", new LineIndex("baz();"), new int[] {3}, false));
+
+        final BinaryCoverageReader reader = BinaryCoverageReader.open(file);
+
+        try {
+            assertEquals(2, reader.getFileCount());
+
+            assertEquals("/a.js", reader.getFileName(0));
+            assertTrue(reader.isSeparateFile(0));
+            assertEquals(3, reader.getLineCount(0));
+
+            assertEquals("page.html__from_1_2_to_3_4", reader.getFileName(1));
+            assertFalse(reader.isSeparateFile(1));
+
+            // the files can be read in any order
+            assertArrayEquals(new int[] {3}, reader.readHits(1));
+            assertArrayEquals(new int[] {-1, 0, 1000000}, reader.readHits(0));
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void separateFilesAreConvertedToLcov() throws IOException {
+        final File file = write(
+                new FileStats("/a.js", new LineIndex("// a\nfoo();\nbar();"), new int[] {-1, 0, 2}, true),
+                new FileStats("page.html__from_1_2_to_3_4", new LineIndex("baz();"), new int[] {3}, false),
+                new FileStats("/b.js", new LineIndex("qux();"), new int[] {1}, true));
+
+        final File lcovFile = folder.newFile("total-coverage.dat");
+        LcovConverter.convert(file, lcovFile);
+
+        assertEquals("SF:/a.js\nDA:2,0\nDA:3,2\nend_of_record\nSF:/b.js\nDA:1,1\nend_of_record\n",
+                Files.toString(lcovFile, Charsets.UTF_8));
+    }
+
+    @Test
+    public void convertedReportsAreTheSameAsTheLcovReport() throws IOException {
+        final RunStats runStats = RawReportBenchmark.generateRunStats(50, 20);
+        runStats.add(new FileStats("page.html__from_1_2_to_3_4", new LineIndex("baz();"), new int[] {3}, false));
+
+        final File binaryFile = new File(folder.getRoot(), "total-coverage.bin");
+        BinaryCoverageWriter.write(runStats.getFileStats(), binaryFile);
+
+        final File convertedFile = folder.newFile("converted-coverage.dat");
+        LcovConverter.convert(binaryFile, convertedFile);
+
+        final File lcovFile = folder.newFile("total-coverage.dat");
+        LcovWriter.write(runStats.getFileStats(), lcovFile);
+
+        assertEquals(Files.toString(lcovFile, Charsets.UTF_8), Files.toString(convertedFile, Charsets.UTF_8));
+    }
+
+    @Test
+    public void emptyReportsAreReadBack() throws IOException {
+        final BinaryCoverageReader reader = BinaryCoverageReader.open(write());
+
+        try {
+            assertEquals(0, reader.getFileCount());
+            assertEquals("", toLcov(reader));
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void otherFilesAreRejected() throws IOException {
+        final File file = folder.newFile("total-coverage.dat");
+        Files.write("SF:/a.js\n", file, Charsets.UTF_8);
+
+        BinaryCoverageReader.open(file);
+    }
+
+    private File write(final FileStats... fileStats) throws IOException {
+        final File file = new File(folder.getRoot(), "total-coverage.bin");
+        BinaryCoverageWriter.write(ImmutableList.copyOf(fileStats), file);
+        return file;
+    }
+
+    private static String toLcov(final BinaryCoverageReader reader) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final LcovWriter writer = new LcovWriter(Channels.newChannel(out));
+        LcovConverter.convert(reader, writer);
+        writer.close();
+        return new String(out.toByteArray(), Charsets.UTF_8);
+    }
+
+}
@@ -0,0 +1,94 @@
+package com.github.timurstrekalov.saga.core;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class CoverageAccumulatorTest {
+
+    @Test
+    public void hitsAreAddedUp() {
+        final CoverageAccumulator accumulator = new CoverageAccumulator(false);
+
+        accumulator.add(fileStats("/a.js", -1, 0, 2));
+        accumulator.add(fileStats("/a.js", -1, 3, 1));
+        accumulator.add(fileStats("/b.js", 5));
+
+        assertEquals(2, accumulator.size());
+        assertEquals(ImmutableList.of(-1, 3, 3), getHits(accumulator, "/a.js"));
+        assertEquals(ImmutableList.of(5), getHits(accumulator, "/b.js"));
+    }
+
+    @Test
+    public void hitsAreClampedToOneIfOnlyLineHitsAreKept() {
+        final CoverageAccumulator accumulator = new CoverageAccumulator(true);
+
+        accumulator.add(fileStats("/a.js", -1, 0, 2));
+        accumulator.add(fileStats("/a.js", -1, 3, 1));
+
+        assertEquals(ImmutableList.of(-1, 1, 1), getHits(accumulator, "/a.js"));
+    }
+
+    @Test
+    public void hitsAreAddedUpFromManyThreads() throws Exception {
+        final CoverageAccumulator accumulator = new CoverageAccumulator(false);
+        final ExecutorService executorService = Executors.newFixedThreadPool(8);
+
+        for (int i = 0; i < 1000; i++) {
+            executorService.submit(new Runnable() {
+                @Override
+                public void run() {
+                    accumulator.add(fileStats("/a.js", 1, -1, 2));
+                }
+            });
+        }
+
+        executorService.shutdown();
+        assertTrue(executorService.awaitTermination(1, TimeUnit.MINUTES));
+
+        assertEquals(ImmutableList.of(1000, -1, 2000), getHits(accumulator, "/a.js"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void differentLayoutsAreRejected() {
+        final CoverageAccumulator accumulator = new CoverageAccumulator(false);
+
+        accumulator.add(fileStats("/a.js", 1, 2));
+        accumulator.add(fileStats("/a.js", 1, 2, 3));
+    }
+
+    private static FileStats fileStats(final String fileName, final int... hits) {
+        final List<LineCoverageRecord> records = Lists.newArrayList();
+
+        for (int i = 0; i < hits.length; i++) {
+            records.add(new LineCoverageRecord(i + 1, hits[i], "line " + (i + 1)));
+        }
+
+        return new FileStats(fileName, records, false);
+    }
+
+    private static List<Integer> getHits(final CoverageAccumulator accumulator, final String fileName) {
+        for (final FileStats fileStats : accumulator.toRunStats(new File("total"), "Total")) {
+            if (fileStats.getFullName().equals(fileName)) {
+                final List<Integer> hits = Lists.newArrayList();
+
+                for (final LineCoverageRecord record : fileStats.getLineCoverageRecords()) {
+                    hits.add(record.getTimesExecuted());
+                }
+
+                return hits;
+            }
+        }
+
+        throw new AssertionError("No stats for " + fileName);
+    }
+
+}
@@ -0,0 +1,77 @@
+package com.github.timurstrekalov.saga.core;
+
+import net.sourceforge.htmlunit.corejs.javascript.Context;
+import net.sourceforge.htmlunit.corejs.javascript.ScriptableObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class CoverageCountersTest {
+
+    private Context cx;
+    private ScriptableObject scope;
+    private CoverageCounters coverageCounters;
+
+    @Before
+    public void setUp() {
+        cx = Context.enter();
+        scope = cx.initStandardObjects();
+        coverageCounters = new CoverageCounters();
+        coverageCounters.register(scope);
+    }
+
+    @After
+    public void tearDown() {
+        Context.exit();
+    }
+
+    @Test
+    public void countersAreKeptInJavaArrays() {
+        evaluate("var c = __saga_counters('/file.js', 2); c[0]++; for (var i = 0; i < 5; i++) { c[1]++; }");
+
+        assertArrayEquals(new int[] {1, 5}, coverageCounters.get(scope, "/file.js"));
+        assertFalse(coverageCounters.isEmpty(scope));
+        assertFalse(coverageCounters.isEmpty());
+    }
+
+    @Test
+    public void scriptsLoadedTwiceKeepCounting() {
+        evaluate("var c = __saga_counters('/file.js', 1); c[0]++;");
+        evaluate("var c = __saga_counters('/file.js', 1); c[0]++;");
+
+        assertArrayEquals(new int[] {2}, coverageCounters.get(scope, "/file.js"));
+
+        coverageCounters.clear();
+        assertNull(coverageCounters.get(scope, "/file.js"));
+    }
+
+    @Test
+    public void everyWindowHasCountersOfItsOwn() {
+        final ScriptableObject frameScope = cx.initStandardObjects();
+        coverageCounters.register(frameScope);
+
+        evaluate("var c = __saga_counters('/file.js', 1); c[0]++;");
+        evaluate(frameScope, "var c = __saga_counters('/file.js', 1); c[0]++; c[0]++;");
+
+        assertArrayEquals(new int[] {1}, coverageCounters.get(scope, "/file.js"));
+        assertArrayEquals(new int[] {2}, coverageCounters.get(frameScope, "/file.js"));
+    }
+
+    @Test
+    public void countersAreAllocatedInTheWindowEvenWhenCalledFromAFunction() {
+        evaluate("(function () { var c = __saga_counters('/file.js', 1); c[0]++; })();");
+
+        assertArrayEquals(new int[] {1}, coverageCounters.get(scope, "/file.js"));
+    }
+
+    private void evaluate(final String source) {
+        evaluate(scope, source);
+    }
+
+    private void evaluate(final ScriptableObject scope, final String source) {
+        cx.evaluateString(scope, source, "test", 1, null);
+    }
+
+}
@@ -0,0 +1,115 @@
+package com.github.timurstrekalov.saga.core;
+
+import com.google.common.collect.Lists;
+
+import java.util.List;
+
+/**
+ * Measures the heap taken by the coverage of a synthetic corpus when it's kept as a list of line coverage records
+ * with a copy of every line per test (the way it used to be), and when it's kept as a hit array per test on top of a
+ * shared line index, e.g.
+ *
+ * <pre>
+ * CoverageModelBenchmark [files] [lines per file] [tests]
+ * </pre>
+ *
+ * Every test is assumed to load every file. Not a test, so it's not run by the build.
+ */
+public class CoverageModelBenchmark {
+
+    public static void main(final String[] args) {
+        final int fileCount = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        final int lineCount = args.length > 1 ? Integer.parseInt(args[1]) : 300;
+        final int testCount = args.length > 2 ? Integer.parseInt(args[2]) : 20;
+
+        final List<String> sources = Lists.newArrayListWithCapacity(fileCount);
+
+        for (int i = 0; i < fileCount; i++) {
+            sources.add(generateSource(i, lineCount));
+        }
+
+        System.out.println(String.format("%d files x %d lines x %d tests", fileCount, lineCount, testCount));
+
+        final long baseline = usedHeap();
+        List<Object> retained = retainRecords(sources, testCount);
+        final long records = usedHeap() - baseline;
+        System.out.println(String.format("%-20s %10.1f MB (%d objects kept)", "records", records / 1e6, retained.size()));
+
+        retained = null;
+
+        final long compactBaseline = usedHeap();
+        retained = retainCompact(sources, testCount);
+        final long compact = usedHeap() - compactBaseline;
+        System.out.println(String.format("%-20s %10.1f MB (%d objects kept)", "index + hits", compact / 1e6,
+                retained.size()));
+
+        System.out.println(String.format("%-20s %10.1fx", "saving", (double) records / compact));
+    }
+
+    private static List<Object> retainRecords(final List<String> sources, final int testCount) {
+        final List<Object> retained = Lists.newArrayList();
+
+        for (int test = 0; test < testCount; test++) {
+            for (final String source : sources) {
+                final List<LineCoverageRecord> records = Lists.newArrayList();
+                int lineNr = 1;
+
+                for (final String line : source.split("\n")) {
+                    // a fresh copy of every line, like Scanner.nextLine() returns
+                    records.add(new LineCoverageRecord(lineNr, lineNr % 3 == 0 ? -1 : test, new String(line)));
+                    lineNr++;
+                }
+
+                retained.add(records);
+            }
+        }
+
+        return retained;
+    }
+
+    private static List<Object> retainCompact(final List<String> sources, final int testCount) {
+        final List<LineIndex> lineIndexes = Lists.newArrayListWithCapacity(sources.size());
+
+        for (final String source : sources) {
+            lineIndexes.add(new LineIndex(source));
+        }
+
+        final List<Object> retained = Lists.<Object>newArrayList(lineIndexes);
+
+        for (int test = 0; test < testCount; test++) {
+            for (int file = 0; file < sources.size(); file++) {
+                final int[] hits = new int[lineIndexes.get(file).getLineCount()];
+
+                for (int i = 0; i < hits.length; i++) {
+                    hits[i] = (i + 1) % 3 == 0 ? -1 : test;
+                }
+
+                retained.add(new FileStats("/file" + file + ".js", lineIndexes.get(file), hits, true));
+            }
+        }
+
+        return retained;
+    }
+
+    private static String generateSource(final int file, final int lineCount) {
+        final StringBuilder source = new StringBuilder();
+
+        for (int i = 0; i < lineCount; i++) {
+            source.append("    var value").append(i).append(" = compute(").append(file).append(", ").append(i)
+                    .append("); // a typical line of code\n");
+        }
+
+        return source.toString();
+    }
+
+    private static long usedHeap() {
+        final Runtime runtime = Runtime.getRuntime();
+
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+        }
+
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+}
@@ -0,0 +1,76 @@
+package com.github.timurstrekalov.saga.core;
+
+import com.google.common.collect.ImmutableList;
+import org.junit.Test;
+
+import java.io.File;
+
+import static org.junit.Assert.*;
+
+public class CoverageSummaryTest {
+
+    private static final String USER_DIR = System.getProperty("user.dir");
+
+    @Test
+    public void statementsAreAddedUpPerDirectoryAndInTotal() {
+        final FileStats a = fileStats("lib/a.js", 1, 0, -1);
+        final FileStats b = fileStats("lib/b.js", 2, 3);
+        final FileStats c = fileStats("src/c.js", 0, 0, 0, 1);
+
+        final CoverageSummary summary = CoverageSummary.of(ImmutableList.of(a, b, c));
+
+        assertEquals(8, summary.getStatements());
+        assertEquals(4, summary.getExecuted());
+        assertEquals(50, summary.getCoverage());
+        assertEquals(ImmutableList.of(c, a, b), summary.getFiles());
+
+        assertEquals(2, summary.getDirectories().size());
+
+        final CoverageSummary lib = summary.getDirectories().get(0);
+        assertEquals("lib", lib.getName());
+        assertEquals(4, lib.getStatements());
+        assertEquals(3, lib.getExecuted());
+        assertEquals(ImmutableList.of(a, b), lib.getFiles());
+
+        final CoverageSummary src = summary.getDirectories().get(1);
+        assertEquals("src", src.getName());
+        assertEquals(4, src.getStatements());
+        assertEquals(1, src.getExecuted());
+    }
+
+    @Test
+    public void summaryIsRebuiltWhenFilesAreAdded() {
+        final RunStats runStats = new RunStats(new File("total"), "Total");
+        runStats.add(fileStats("lib/a.js", 1, 0));
+
+        final CoverageSummary summary = runStats.getSummary();
+        assertSame(summary, runStats.getSummary());
+        assertEquals(2, runStats.getTotalStatements());
+
+        runStats.add(fileStats("lib/b.js", 1, 1));
+
+        assertNotSame(summary, runStats.getSummary());
+        assertEquals(4, runStats.getTotalStatements());
+        assertEquals(75, runStats.getTotalCoverage());
+    }
+
+    @Test
+    public void emptyRunHasNoStatements() {
+        final CoverageSummary summary = CoverageSummary.of(ImmutableList.<FileStats>of());
+
+        assertFalse(summary.getHasStatements());
+        assertTrue(summary.getDirectories().isEmpty());
+    }
+
+    private static FileStats fileStats(final String relativeName, final int... hits) {
+        final StringBuilder source = new StringBuilder();
+
+        for (int i = 0; i < hits.length; i++) {
+            source.append("line").append(i).append('\n');
+        }
+
+        return new FileStats(new File(USER_DIR, relativeName).getAbsolutePath(), new LineIndex(source.toString()),
+                hits, true);
+    }
+
+}
@@ -0,0 +1,94 @@
+package com.github.timurstrekalov.saga.core;
+
+import com.gargoylesoftware.htmlunit.WebClient;
+import com.gargoylesoftware.htmlunit.javascript.HtmlUnitContextFactory;
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import net.sourceforge.htmlunit.corejs.javascript.Context;
+import net.sourceforge.htmlunit.corejs.javascript.Script;
+import net.sourceforge.htmlunit.corejs.javascript.ScriptableObject;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Measures how much slower instrumented code runs than the original, for every counter style, both counting and
+ * recording line hits only. The script is run in interpreted mode, the same as HtmlUnit runs it, and must not need a
+ * DOM. Uses a built-in CPU-bound workload if no script is given. Not a test, so it's not run by the build.
+ */
+public class ExecutionOverheadBenchmark {
+
+    private static final int WARMUP_ITERATIONS = 5;
+    private static final int ITERATIONS = 20;
+
+    private static final String WORKLOAD =
+            "function fib(n) {\n" +
+            "    if (n < 2) {\n" +
+            "        return n;\n" +
+            "    }\n" +
+            "    return fib(n - 1) + fib(n - 2);\n" +
+            "}\n" +
+            "var sum = 0;\n" +
+            "for (var i = 0; i < 20000; i++) {\n" +
+            "    sum += i % 7;\n" +
+            "    if (sum > 1000) sum -= 1000;\n" +
+            "}\n" +
+            "fib(18);\n";
+
+    public static void main(final String[] args) throws IOException {
+        final String source = args.length > 0 ? Files.toString(new File(args[0]), Charsets.UTF_8) : WORKLOAD;
+        final HtmlUnitContextFactory contextFactory = new WebClient().getJavaScriptEngine().getContextFactory();
+
+        final double baseline = measure(source);
+        System.out.println(String.format("%-30s %8.2fms", "uninstrumented", baseline));
+
+        for (final CounterStyle counterStyle : CounterStyle.values()) {
+            for (final boolean lineHitOnly : new boolean[] {false, true}) {
+                final ScriptInstrumenter instrumenter = new ScriptInstrumenter(contextFactory, "__coverage_data");
+                instrumenter.setCounterStyle(counterStyle);
+                instrumenter.setLineHitOnly(lineHitOnly);
+
+                final String instrumented = instrumenter.preProcess(null, source, "/benchmark.js", 1, null);
+                final double time = measure(instrumented);
+
+                System.out.println(String.format("%-30s %8.2fms %+7.1f%%",
+                        counterStyle + (lineHitOnly ? ", line hit only" : ", counting"),
+                        time, (time / baseline - 1) * 100));
+            }
+        }
+    }
+
+    /**
+     * @return the average time it takes to run the script in a fresh scope, in milliseconds
+     */
+    private static double measure(final String source) {
+        final Context cx = Context.enter();
+
+        try {
+            cx.setOptimizationLevel(-1);
+            final Script script = cx.compileString(source, "benchmark.js", 1, null);
+
+            for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+                script.exec(cx, newScope(cx));
+            }
+
+            final long start = System.nanoTime();
+
+            for (int i = 0; i < ITERATIONS; i++) {
+                script.exec(cx, newScope(cx));
+            }
+
+            return (System.nanoTime() - start) / 1e6 / ITERATIONS;
+        } finally {
+            Context.exit();
+        }
+    }
+
+    private static ScriptableObject newScope(final Context cx) {
+        final ScriptableObject scope = cx.initStandardObjects();
+        scope.put("window", scope, scope);
+        new CoverageCounters().register(scope);
+        return scope;
+    }
+
+}
@@ -3,7 +3,9 @@ package com.github.timurstrekalov.saga.core;
 import com.google.common.collect.Lists;
 import org.junit.Test;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
 
 public class FileStatsTest {
 
@@ -13,4 +15,39 @@ public class FileStatsTest {
                 Lists.<LineCoverageRecord>newLinkedList(), true).getParentName());
     }
 
+    @Test
+    public void mergeAddsUpTheHitsOfExecutableLines() {
+        final LineIndex lineIndex = new LineIndex("// comment\nfoo();\nbar();");
+
+        final FileStats merged = FileStats.merge(
+                new FileStats("/file.js", lineIndex, new int[] {-1, 1, 0}, true),
+                new FileStats("/file.js", lineIndex, new int[] {-1, 2, 3}, true));
+
+        assertSame(lineIndex, merged.getLineIndex());
+        assertArrayEquals(new int[] {-1, 3, 3}, merged.getHits());
+        assertEquals(2, merged.getStatements());
+        assertEquals(2, merged.getExecuted());
+    }
+
+    @Test
+    public void lineCoverageRecordsAreCreatedFromTheLineIndex() {
+        final FileStats fileStats = new FileStats("/file.js", new LineIndex("// comment\nfoo();"), new int[] {-1, 4},
+                true);
+
+        final LineCoverageRecord record = fileStats.getLineCoverageRecords().get(1);
+
+        assertEquals(2, fileStats.getLineCoverageRecords().size());
+        assertEquals(2, record.getLineNr());
+        assertEquals(4, record.getTimesExecuted());
+        assertEquals("foo();", record.getLine());
+        assertEquals(1, fileStats.getExecutableLineCoverageRecords().size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void filesWithDifferentLinesAreNotMerged() {
+        FileStats.merge(
+                new FileStats("/file.js", new LineIndex("foo();"), new int[] {1}, true),
+                new FileStats("/file.js", new LineIndex("bar();"), new int[] {1}, true));
+    }
+
 }
@@ -0,0 +1,57 @@
+package com.github.timurstrekalov.saga.core;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import org.junit.Test;
+
+import java.io.*;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ForkedTestRunnerTest {
+
+    private final File a = new File("a.html");
+    private final File b = new File("b.html");
+    private final File c = new File("c.html");
+
+    @Test
+    public void testsAreDealtOutRoundRobin() {
+        final List<List<File>> shards = ForkedTestRunner.shard(ImmutableList.of(a, b, c), 2);
+
+        assertEquals(ImmutableList.of(ImmutableList.of(a, c), ImmutableList.of(b)), shards);
+    }
+
+    @Test
+    public void thereAreNoEmptyShards() {
+        final List<List<File>> shards = ForkedTestRunner.shard(ImmutableList.of(a, b), 4);
+
+        assertEquals(ImmutableList.of(ImmutableList.of(a), ImmutableList.of(b)), shards);
+    }
+
+    @Test
+    public void statsAreDeserialized() throws Exception {
+        final RunStats runStats = new RunStats(a, "Coverage report");
+        runStats.add(new FileStats("/a.js", new LineIndex("foo();\nbar();"), new int[] {1, -1}, true));
+
+        final RunStats copy = (RunStats) deserialize(runStats);
+
+        assertEquals(a, copy.test);
+        assertArrayEquals(new int[] {1, -1}, copy.getUnsortedFileStats().iterator().next().getHits());
+    }
+
+    @Test(expected = InvalidClassException.class)
+    public void otherClassesAreRejected() throws Exception {
+        deserialize(Lists.newArrayList(a));
+    }
+
+    private static Object deserialize(final Object object) throws IOException, ClassNotFoundException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(object);
+        out.close();
+
+        return new ForkedTestRunner.StatsInputStream(new ByteArrayInputStream(bytes.toByteArray())).readObject();
+    }
+
+}
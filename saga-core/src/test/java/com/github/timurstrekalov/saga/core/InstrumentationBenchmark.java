@@ -0,0 +1,133 @@
+package com.github.timurstrekalov.saga.core;
+
+import com.gargoylesoftware.htmlunit.WebClient;
+import com.gargoylesoftware.htmlunit.javascript.HtmlUnitContextFactory;
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+import net.sourceforge.htmlunit.corejs.javascript.CompilerEnvirons;
+import net.sourceforge.htmlunit.corejs.javascript.Context;
+import net.sourceforge.htmlunit.corejs.javascript.Parser;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Compares the instrumentation modes on real-world scripts, and measures the parse throughput with the parser settings
+ * set up for every script (the way it used to be) and reused per thread, e.g.
+ *
+ * <pre>
+ * InstrumentationBenchmark jquery-1.8.2.js prototype-1.7.1.js ext-all-debug.js
+ * </pre>
+ *
+ * Falls back to the Class.js test script if no files are given. Not a test, so it's not run by the build.
+ */
+public class InstrumentationBenchmark {
+
+    private static final int WARMUP_ITERATIONS = 5;
+    private static final int ITERATIONS = 20;
+    private static final int PARSE_ITERATIONS = 200;
+
+    public static void main(final String[] args) throws IOException {
+        final List<String> names = Lists.newArrayList();
+        final List<String> sources = Lists.newArrayList();
+
+        if (args.length == 0) {
+            names.add("Class.js");
+            sources.add(Data.getClassJsSourceCode());
+        }
+
+        for (final String arg : args) {
+            final File file = new File(arg);
+            names.add(file.getName());
+            sources.add(Files.toString(file, Charsets.UTF_8));
+        }
+
+        final HtmlUnitContextFactory contextFactory = new WebClient().getJavaScriptEngine().getContextFactory();
+
+        System.out.println(String.format("%-30s %10s %10s %10s", "script", "chars", "toSource", "splicing"));
+
+        for (int i = 0; i < sources.size(); i++) {
+            final String source = sources.get(i);
+
+            final double regenerating = measure(contextFactory, source, false);
+            final double splicing = measure(contextFactory, source, true);
+
+            System.out.println(String.format("%-30s %10d %8.2fms %8.2fms", names.get(i), source.length(),
+                    regenerating, splicing));
+        }
+
+        System.out.println();
+        System.out.println(String.format("%-30s %14s %14s", "script", "per script/s", "per thread/s"));
+
+        for (int i = 0; i < sources.size(); i++) {
+            final String source = sources.get(i);
+
+            final double perScript = measureParseThroughput(contextFactory, source, false);
+            final double perThread = measureParseThroughput(contextFactory, source, true);
+
+            System.out.println(String.format("%-30s %14.1f %14.1f", names.get(i), perScript, perThread));
+        }
+    }
+
+    /**
+     * @return the number of scripts parsed per second
+     */
+    private static double measureParseThroughput(final HtmlUnitContextFactory contextFactory, final String source,
+            final boolean reuseEnvirons) {
+        final CompilerEnvirons reusedEnvirons = newCompilerEnvirons(contextFactory);
+
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            new Parser(reusedEnvirons).parse(source, "benchmark.js", 1);
+        }
+
+        final long start = System.nanoTime();
+
+        for (int i = 0; i < PARSE_ITERATIONS; i++) {
+            final CompilerEnvirons environs = reuseEnvirons ? reusedEnvirons : newCompilerEnvirons(contextFactory);
+            new Parser(environs).parse(source, "benchmark.js", 1);
+        }
+
+        return PARSE_ITERATIONS / ((System.nanoTime() - start) / 1e9);
+    }
+
+    private static CompilerEnvirons newCompilerEnvirons(final HtmlUnitContextFactory contextFactory) {
+        final CompilerEnvirons environs = new CompilerEnvirons();
+
+        try {
+            environs.initFromContext(contextFactory.enterContext());
+        } finally {
+            Context.exit();
+        }
+
+        return environs;
+    }
+
+    /**
+     * @return the average time it takes to instrument the source, in milliseconds
+     */
+    private static double measure(final HtmlUnitContextFactory contextFactory, final String source,
+            final boolean preserveSourceFormatting) {
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            instrument(contextFactory, source, preserveSourceFormatting);
+        }
+
+        final long start = System.nanoTime();
+
+        for (int i = 0; i < ITERATIONS; i++) {
+            instrument(contextFactory, source, preserveSourceFormatting);
+        }
+
+        return (System.nanoTime() - start) / 1e6 / ITERATIONS;
+    }
+
+    private static void instrument(final HtmlUnitContextFactory contextFactory, final String source,
+            final boolean preserveSourceFormatting) {
+        // a fresh instrumenter with caching disabled, so that every iteration actually parses the source
+        final ScriptInstrumenter instrumenter = new ScriptInstrumenter(contextFactory, "__coverage_data");
+        instrumenter.setPreserveSourceFormatting(preserveSourceFormatting);
+        instrumenter.preProcess(null, source, "/benchmark.js", 1, null);
+    }
+
+}
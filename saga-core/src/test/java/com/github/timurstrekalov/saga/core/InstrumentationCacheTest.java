@@ -0,0 +1,46 @@
+package com.github.timurstrekalov.saga.core;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.*;
+
+public class InstrumentationCacheTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private InstrumentationCache cache;
+
+    @Before
+    public void setUp() throws Exception {
+        cache = new InstrumentationCache(folder.newFolder("cache"), "1.0");
+    }
+
+    @Test
+    public void roundTrip() {
+        final ScriptData data = new ScriptData("/path/to/file.js", "var a = 1;\nvar b = 2;", true);
+        data.addExecutableLine(1, 10);
+        data.addExecutableLine(2, 10);
+        data.setInstrumentedSourceCode("instrumented");
+
+        final String key = cache.keyFor(data.getSourceName(), data.getSourceCode());
+        assertNull(cache.get(key, data.getSourceName(), data.getSourceCode(), true));
+
+        cache.put(key, data);
+
+        assertEquals(data, cache.get(key, data.getSourceName(), data.getSourceCode(), true));
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+    }
+
+    @Test
+    public void keyDependsOnVersion() throws Exception {
+        final InstrumentationCache otherVersion = new InstrumentationCache(cache.getDirectory(), "2.0");
+        assertFalse(cache.keyFor("a", "b").equals(otherVersion.keyFor("a", "b")));
+        assertFalse(cache.keyFor("ab", "").equals(cache.keyFor("a", "b")));
+    }
+
+}
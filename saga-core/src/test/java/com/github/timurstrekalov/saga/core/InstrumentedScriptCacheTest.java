@@ -0,0 +1,45 @@
+package com.github.timurstrekalov.saga.core;
+
+import com.google.common.base.Strings;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class InstrumentedScriptCacheTest {
+
+    @Test
+    public void boundedByBytes() {
+        final InstrumentedScriptCache cache = new InstrumentedScriptCache(10000);
+
+        for (int i = 0; i < 100; i++) {
+            assertNull(cache.putIfAbsent("key" + i, newScriptData(100)));
+        }
+
+        assertTrue(cache.size() < 100);
+        assertTrue(cache.getBytes() <= 10000);
+        assertTrue(cache.stats().evictionCount() > 0);
+    }
+
+    @Test
+    public void putIfAbsent() {
+        final InstrumentedScriptCache cache = new InstrumentedScriptCache(10000);
+        final ScriptData data = newScriptData(10);
+
+        assertNull(cache.putIfAbsent("key", data));
+        assertSame(data, cache.putIfAbsent("key", newScriptData(10)));
+        assertSame(data, cache.get("key"));
+        assertEquals(80, cache.getBytes());
+
+        cache.clear();
+
+        assertNull(cache.get("key"));
+        assertEquals(0, cache.getBytes());
+    }
+
+    private ScriptData newScriptData(final int length) {
+        final ScriptData data = new ScriptData("/file.js", Strings.repeat("a", length), true);
+        data.setInstrumentedSourceCode(Strings.repeat("b", length * 3));
+        return data;
+    }
+
+}
@@ -0,0 +1,67 @@
+package com.github.timurstrekalov.saga.core;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
+import com.google.common.io.Files;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.stringtemplate.v4.STGroupDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+public class LcovWriterTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void onlySeparateFilesAndExecutableLinesAreWritten() throws IOException {
+        final RunStats runStats = new RunStats(new File("total"), "Total");
+        runStats.add(new FileStats("/a.js", new LineIndex("// a\nfoo();\nbar();"), new int[] {-1, 0, 1234567890}, true));
+        runStats.add(new FileStats("page.html__from_1_2_to_3_4", new LineIndex("baz();"), new int[] {3}, false));
+
+        assertEquals("SF:/a.js\nDA:2,0\nDA:3,1234567890\nend_of_record\n", write(runStats));
+    }
+
+    @Test
+    public void outputIsTheSameAsTheTemplates() throws IOException {
+        final RunStats runStats = RawReportBenchmark.generateRunStats(50, 100);
+        final File templateFile = folder.newFile("template-coverage.dat");
+
+        // the templates the report used to be rendered with, kept as a reference
+        new STGroupDir("rawReportTemplates", '$', '$').getInstanceOf("runStatsRaw")
+                .add("stats", runStats)
+                .write(templateFile, new LoggingStringTemplateErrorListener());
+
+        assertEquals(Files.toString(templateFile, Charsets.UTF_8).replace(System.getProperty("line.separator"), "\n"),
+                write(runStats));
+    }
+
+    @Test
+    public void recordsLongerThanTheBufferAreWrittenWhole() throws IOException {
+        final String fileName = "/" + Strings.repeat("a", 100000) + ".js";
+        final int[] hits = new int[20000];
+
+        final RunStats runStats = new RunStats(new File("total"), "Total");
+        runStats.add(new FileStats(fileName, LineIndex.fromLines(Collections.nCopies(hits.length, "x();")),
+                hits, true));
+
+        final String lcov = write(runStats);
+
+        assertTrue(lcov.startsWith("SF:" + fileName + "\nDA:1,0\n"));
+        assertTrue(lcov.endsWith("\nDA:20000,0\nend_of_record\n"));
+        assertEquals(1 + hits.length + 1, lcov.split("\n").length);
+    }
+
+    private String write(final RunStats runStats) throws IOException {
+        final File file = new File(folder.getRoot(), "total-coverage.dat");
+        LcovWriter.write(runStats.getFileStats(), file);
+        return Files.toString(file, Charsets.UTF_8);
+    }
+
+}
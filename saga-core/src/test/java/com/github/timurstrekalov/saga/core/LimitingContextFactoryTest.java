@@ -0,0 +1,115 @@
+package com.github.timurstrekalov.saga.core;
+
+import com.gargoylesoftware.htmlunit.WebClient;
+import com.gargoylesoftware.htmlunit.html.HtmlPage;
+import com.gargoylesoftware.htmlunit.javascript.TimeoutError;
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import net.sourceforge.htmlunit.corejs.javascript.Context;
+import net.sourceforge.htmlunit.corejs.javascript.ScriptableObject;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+public class LimitingContextFactoryTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final LimitingContextFactory factory = new LimitingContextFactory(new WebClient());
+
+    @Test
+    public void scriptsRunFreelyWithoutLimits() {
+        factory.startLimiting(0, 0);
+
+        assertEquals(100000, ((Number) evaluate("var i = 0; while (i < 100000) { i++; } i")).intValue());
+        assertFalse(factory.isLimitExceeded());
+        assertTrue(factory.getInstructionCount() > 0);
+    }
+
+    @Test
+    public void endlessLoopsAreStoppedByTheInstructionBudget() {
+        factory.startLimiting(0, 100000);
+
+        try {
+            evaluate("while (true) {}");
+            fail("The loop should have been stopped");
+        } catch (final TimeoutError e) {
+            assertTrue(factory.isLimitExceeded());
+        }
+    }
+
+    @Test
+    public void endlessLoopsAreStoppedByTheDeadline() {
+        factory.startLimiting(System.currentTimeMillis() + 100, 0);
+
+        try {
+            evaluate("while (true) {}");
+            fail("The loop should have been stopped");
+        } catch (final TimeoutError e) {
+            assertTrue(factory.isLimitExceeded());
+        }
+    }
+
+    @Test
+    public void scriptsRunAgainOnceLimitingStops() {
+        factory.startLimiting(0, 1);
+
+        try {
+            evaluate("while (true) {}");
+        } catch (final TimeoutError e) {
+            // expected
+        }
+
+        factory.stopLimiting();
+
+        assertEquals(100000, ((Number) evaluate("var i = 0; while (i < 100000) { i++; } i")).intValue());
+    }
+
+    @Test(timeout = 60000)
+    public void endlessLoopsInPagesAreStoppedWithoutLosingThePage() throws IOException {
+        final File test = folder.newFile("endless.html");
+        Files.write("<html><head><script>var before = 1; while (true) {}</script>"
+                + "<script>var after = 1;</script></head><body></body></html>", test, Charsets.UTF_8);
+
+        final WebClient client = SagaWebClient.newWebClient(false);
+        final LimitingContextFactory limitingContextFactory = ((SagaJavaScriptEngine) client.getJavaScriptEngine())
+                .getLimitingContextFactory();
+
+        // the engine falls back to no limits at all if it can't install the factory
+        assertNotNull(limitingContextFactory);
+
+        try {
+            limitingContextFactory.startLimiting(0, 100000);
+
+            final HtmlPage page = client.getPage(test.toURI().toURL());
+
+            assertTrue(limitingContextFactory.isLimitExceeded());
+
+            limitingContextFactory.stopLimiting();
+
+            // the aborted script is reported like any other script error, and the scripts after it still run
+            assertEquals(1, ((Number) page.executeJavaScript("before").getJavaScriptResult()).intValue());
+            assertEquals(1, ((Number) page.executeJavaScript("after").getJavaScriptResult()).intValue());
+        } finally {
+            client.closeAllWindows();
+        }
+    }
+
+    private Object evaluate(final String source) {
+        final Context cx = factory.enterContext();
+
+        try {
+            final ScriptableObject scope = cx.initStandardObjects();
+            return cx.evaluateString(scope, source, "test.js", 1, null);
+        } finally {
+            Context.exit();
+        }
+    }
+
+}
@@ -0,0 +1,64 @@
+package com.github.timurstrekalov.saga.core;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Scanner;
+
+import static org.junit.Assert.*;
+
+public class LineIndexTest {
+
+    @Test
+    public void linesAreSplitLikeScannerDoes() {
+        for (final String source : ImmutableList.of(
+                "",
+                "a",
+                "a\n",
+                "a\nb",
+                "a\r\nb\rc\n\nd",
+                "\n\na\n\n",
+                "a\n  \n\t\nb\n \n\t\n",
+                "a\u2028b\u2029c\u0085d")) {
+            assertEquals(source, scan(source), getLines(new LineIndex(source)));
+        }
+    }
+
+    @Test
+    public void linesAreKeptAsGiven() {
+        final List<String> lines = ImmutableList.of("a", "", "  b", "");
+
+        assertEquals(lines, getLines(LineIndex.fromLines(lines)));
+    }
+
+    @Test
+    public void indexesWithTheSameLinesMatch() {
+        assertTrue(new LineIndex("a\r\nb").hasSameLines(LineIndex.fromLines(ImmutableList.of("a", "b"))));
+        assertFalse(new LineIndex("a\nb").hasSameLines(new LineIndex("a\nc")));
+        assertFalse(new LineIndex("a\nb").hasSameLines(new LineIndex("a")));
+    }
+
+    private static List<String> scan(final String source) {
+        final Scanner in = new Scanner(source);
+        final List<String> lines = Lists.newArrayList();
+
+        while (in.hasNext()) {
+            lines.add(in.nextLine());
+        }
+
+        return lines;
+    }
+
+    private static List<String> getLines(final LineIndex lineIndex) {
+        final List<String> lines = Lists.newArrayList();
+
+        for (int i = 0; i < lineIndex.getLineCount(); i++) {
+            lines.add(lineIndex.getLine(i));
+        }
+
+        return lines;
+    }
+
+}
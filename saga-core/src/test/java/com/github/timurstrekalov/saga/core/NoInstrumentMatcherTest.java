@@ -0,0 +1,41 @@
+package com.github.timurstrekalov.saga.core;
+
+import com.google.common.collect.ImmutableList;
+import org.junit.Test;
+
+import java.util.Collections;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class NoInstrumentMatcherTest {
+
+    @Test
+    public void matchesWholeNamesAgainstAnyPattern() {
+        final NoInstrumentMatcher matcher = new NoInstrumentMatcher(ImmutableList.of(".+/lib/.+", ".+Test\\.js", "a|b"));
+
+        assertTrue(matcher.matches("/project/lib/jquery.js"));
+        assertTrue(matcher.matches("/project/src/ClassTest.js"));
+        assertTrue(matcher.matches("b"));
+        assertFalse(matcher.matches("/project/src/Class.js"));
+        assertFalse(matcher.matches("ab"));
+
+        // decided before, must be the same
+        assertTrue(matcher.matches("/project/lib/jquery.js"));
+        assertFalse(matcher.matches("/project/src/Class.js"));
+    }
+
+    @Test
+    public void backReferences() {
+        final NoInstrumentMatcher matcher = new NoInstrumentMatcher(ImmutableList.of("x", "(.)\\1\\.js"));
+
+        assertTrue(matcher.matches("aa.js"));
+        assertFalse(matcher.matches("ab.js"));
+    }
+
+    @Test
+    public void noPatterns() {
+        assertFalse(new NoInstrumentMatcher(Collections.<String>emptyList()).matches("/project/src/Class.js"));
+    }
+
+}
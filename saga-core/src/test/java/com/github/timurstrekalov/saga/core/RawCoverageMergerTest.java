@@ -0,0 +1,82 @@
+package com.github.timurstrekalov.saga.core;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.Files;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+public class RawCoverageMergerTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private CoverageAccumulator accumulator;
+    private RawCoverageMerger merger;
+
+    @Before
+    public void setUp() {
+        accumulator = new CoverageAccumulator(false);
+        merger = new RawCoverageMerger(accumulator, Charsets.UTF_8);
+    }
+
+    @Test
+    public void reportsOfBothFormatsAreAddedUp() throws IOException {
+        final File source = folder.newFile("a.js");
+        Files.write("// a\nfoo();\nbar();\n", source, Charsets.UTF_8);
+
+        final String fileName = source.getAbsolutePath();
+
+        final File lcovReport = folder.newFile("shard1-coverage.dat");
+        Files.write("SF:" + fileName + "\nDA:2,1\nDA:3,0\nend_of_record\n", lcovReport, Charsets.UTF_8);
+
+        final File binaryReport = new File(folder.getRoot(), "shard2-coverage.bin");
+        BinaryCoverageWriter.write(ImmutableList.of(
+                new FileStats(fileName, new LineIndex("// a\nfoo();\nbar();"), new int[] {-1, 2, 5}, true)),
+                binaryReport);
+
+        merger.merge(lcovReport);
+        merger.merge(binaryReport);
+
+        final FileStats fileStats = getOnlyFileStats();
+
+        assertEquals(fileName, fileStats.getFullName());
+        assertArrayEquals(new int[] {-1, 3, 5}, fileStats.getHits());
+        assertEquals("foo();", fileStats.getLineCoverageRecords().get(1).getLine());
+    }
+
+    @Test
+    public void linesAreLeftBlankIfTheSourceCannotBeRead() throws IOException {
+        final File lcovReport = folder.newFile("total-coverage.dat");
+        Files.write("SF:/missing.js\nDA:2,1,checksum\nend_of_record\n", lcovReport, Charsets.UTF_8);
+
+        merger.merge(lcovReport);
+
+        final FileStats fileStats = getOnlyFileStats();
+
+        assertArrayEquals(new int[] {-1, 1}, fileStats.getHits());
+        assertEquals("", fileStats.getLineCoverageRecords().get(1).getLine());
+    }
+
+    @Test(expected = IOException.class)
+    public void malformedLcovIsRejected() throws IOException {
+        final File lcovReport = folder.newFile("total-coverage.dat");
+        Files.write("SF:/a.js\nDA:two,1\nend_of_record\n", lcovReport, Charsets.UTF_8);
+
+        merger.merge(lcovReport);
+    }
+
+    private FileStats getOnlyFileStats() {
+        final RunStats runStats = accumulator.toRunStats(new File("total"), "Total");
+        assertEquals(1, runStats.getUnsortedFileStats().size());
+        return runStats.getUnsortedFileStats().iterator().next();
+    }
+
+}
@@ -0,0 +1,163 @@
+package com.github.timurstrekalov.saga.core;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import org.stringtemplate.v4.STGroup;
+import org.stringtemplate.v4.STGroupDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Compares writing and reading the raw report of a synthetic run as LCOV rendered by the template, as LCOV written by
+ * {@link LcovWriter} and in the binary format, e.g.
+ *
+ * <pre>
+ * RawReportBenchmark [files] [lines per file]
+ * </pre>
+ *
+ * Not a test, so it's not run by the build.
+ */
+public class RawReportBenchmark {
+
+    private static final int WARMUP_ITERATIONS = 2;
+    private static final int ITERATIONS = 5;
+
+    public static void main(final String[] args) throws IOException {
+        final int fileCount = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+        final int lineCount = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+
+        final RunStats runStats = generateRunStats(fileCount, lineCount);
+        final STGroup stringTemplateGroup = new STGroupDir("rawReportTemplates", '$', '$');
+
+        final File dir = Files.createTempDir();
+        final File lcovFile = new File(dir, "total-coverage.dat");
+        final File binaryFile = new File(dir, "total-coverage.bin");
+
+        System.out.println(String.format("%d files x %d lines", fileCount, lineCount));
+        System.out.println(String.format("%-20s %10s %10s", "", "ms", "KB"));
+
+        final double templateWrite = measure(new Task() {
+            @Override
+            public void run() throws IOException {
+                stringTemplateGroup.getInstanceOf("runStatsRaw")
+                        .add("stats", runStats)
+                        .write(lcovFile, new LoggingStringTemplateErrorListener());
+            }
+        });
+        print("template write", templateWrite, lcovFile);
+
+        final double streamingWrite = measure(new Task() {
+            @Override
+            public void run() throws IOException {
+                LcovWriter.write(runStats.getFileStats(), lcovFile);
+            }
+        });
+        print("streaming write", streamingWrite, lcovFile);
+
+        final double lcovRead = measure(new Task() {
+            @Override
+            public void run() throws IOException {
+                final Reader in = Files.newReader(lcovFile, Charsets.UTF_8);
+                final char[] buffer = new char[8192];
+
+                try {
+                    while (in.read(buffer) != -1) {
+                        // only the cost of getting the text in, parsing it would take longer still
+                    }
+                } finally {
+                    in.close();
+                }
+            }
+        });
+        print("lcov read", lcovRead, lcovFile);
+
+        final double binaryWrite = measure(new Task() {
+            @Override
+            public void run() throws IOException {
+                BinaryCoverageWriter.write(runStats.getFileStats(), binaryFile);
+            }
+        });
+        print("binary write", binaryWrite, binaryFile);
+
+        final double binaryRead = measure(new Task() {
+            @Override
+            public void run() throws IOException {
+                final BinaryCoverageReader reader = BinaryCoverageReader.open(binaryFile);
+
+                try {
+                    for (int i = 0; i < reader.getFileCount(); i++) {
+                        reader.readHits(i);
+                    }
+                } finally {
+                    reader.close();
+                }
+            }
+        });
+        print("binary read", binaryRead, binaryFile);
+
+        final double conversion = measure(new Task() {
+            @Override
+            public void run() throws IOException {
+                LcovConverter.convert(binaryFile, lcovFile);
+            }
+        });
+        print("lcov conversion", conversion, lcovFile);
+
+        lcovFile.delete();
+        binaryFile.delete();
+        dir.delete();
+    }
+
+    static RunStats generateRunStats(final int fileCount, final int lineCount) {
+        final StringBuilder source = new StringBuilder();
+
+        for (int i = 0; i < lineCount; i++) {
+            source.append("    var value").append(i).append(" = compute(").append(i).append(");\n");
+        }
+
+        final LineIndex lineIndex = new LineIndex(source.toString());
+        final RunStats runStats = new RunStats(new File("total"), "Total coverage report");
+
+        for (int file = 0; file < fileCount; file++) {
+            final int[] hits = new int[lineCount];
+
+            for (int i = 0; i < lineCount; i++) {
+                hits[i] = i % 4 == 0 ? -1 : (file + i) % 50;
+            }
+
+            runStats.add(new FileStats("/project/src/dir" + file % 100 + "/file" + file + ".js", lineIndex, hits, true));
+        }
+
+        return runStats;
+    }
+
+    /**
+     * @return the average time the task takes, in milliseconds
+     */
+    static double measure(final Task task) throws IOException {
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            task.run();
+        }
+
+        final long start = System.nanoTime();
+
+        for (int i = 0; i < ITERATIONS; i++) {
+            task.run();
+        }
+
+        return (System.nanoTime() - start) / 1e6 / ITERATIONS;
+    }
+
+    static void print(final String name, final double millis, final File file) {
+        System.out.println(String.format("%-20s %10.1f %10d", name, millis, file.length() / 1024));
+    }
+
+    interface Task {
+
+        void run() throws IOException;
+
+    }
+
+}
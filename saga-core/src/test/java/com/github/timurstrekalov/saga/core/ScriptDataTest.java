@@ -0,0 +1,39 @@
+package com.github.timurstrekalov.saga.core;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ScriptDataTest {
+
+    @Test
+    public void statementsAreIndexedByLine() {
+        final ScriptData data = new ScriptData("/file.js", "// comment\nfoo();\n\nbar(\n1);\n", true);
+        data.addExecutableLine(2, 6);
+        data.addExecutableLine(4, 7);
+
+        assertEquals(5, data.getLineIndex().getLineCount());
+        assertArrayEquals(new int[] {-1, 0, -1, 1, -1}, data.getStatementIndexes());
+    }
+
+    @Test
+    public void statementsPastTheLastLineAreIgnored() {
+        final ScriptData data = new ScriptData("/file.js", "foo();", true);
+        data.addExecutableLine(1, 6);
+        data.addExecutableLine(3, 6);
+
+        assertArrayEquals(new int[] {0}, data.getStatementIndexes());
+    }
+
+    @Test
+    public void boundScriptsShareTheIndex() {
+        final ScriptData template = new ScriptData("placeholder", "foo();", false);
+        template.addExecutableLine(1, 6);
+
+        final ScriptData data = template.bindTo("/file.js", true, "instrumented");
+
+        assertSame(template.getLineIndex(), data.getLineIndex());
+        assertSame(template.getStatementIndexes(), data.getStatementIndexes());
+    }
+
+}
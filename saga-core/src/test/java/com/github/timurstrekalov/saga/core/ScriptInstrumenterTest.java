@@ -1,16 +1,29 @@
 package com.github.timurstrekalov.saga.core;
 
+import com.gargoylesoftware.htmlunit.WebClient;
 import com.gargoylesoftware.htmlunit.html.HtmlElement;
 import com.gargoylesoftware.htmlunit.html.HtmlPage;
 import com.gargoylesoftware.htmlunit.javascript.HtmlUnitContextFactory;
+import net.sourceforge.htmlunit.corejs.javascript.CompilerEnvirons;
 import net.sourceforge.htmlunit.corejs.javascript.Context;
+import net.sourceforge.htmlunit.corejs.javascript.Parser;
+import net.sourceforge.htmlunit.corejs.javascript.Scriptable;
+import org.apache.commons.lang.StringUtils;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.Mock;
 import org.mockito.runners.MockitoJUnitRunner;
 
+import java.util.Collections;
+
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 @RunWith(MockitoJUnitRunner.class)
@@ -51,4 +64,215 @@ public class ScriptInstrumenterTest {
         assertEquals(Data.getClassJsInstrumented(), classJsData.getInstrumentedSourceCode());
     }
 
+    @Test
+    public void sameSourceUnderDifferentNamesIsInstrumentedOnce() {
+        final String sourceCode = Data.getClassJsSourceCode() + "\nvar sameSourceUnderDifferentNames = true;\n";
+
+        final ScriptInstrumenter instrumenter = new ScriptInstrumenter(factory, COVERAGE_VARIABLE_NAME);
+        instrumenter.setCacheInstrumentedCode(true);
+
+        instrumenter.preProcess(htmlPage, sourceCode, "file:/first/Class.js", 1, htmlElement);
+        instrumenter.preProcess(htmlPage, sourceCode, "file:/second/Class.js", 1, htmlElement);
+
+        verify(factory, times(1)).enterContext();
+        assertEquals(2, instrumenter.getScriptDataList().size());
+
+        final ScriptData first = instrumenter.getScriptDataList().get(0);
+        final ScriptData second = instrumenter.getScriptDataList().get(1);
+
+        assertEquals(first.getLineNumbersOfAllStatements(), second.getLineNumbersOfAllStatements());
+        assertTrue(second.getInstrumentedSourceCode().contains("['" + second.getSourceName() + "']"));
+        assertEquals(first.getInstrumentedSourceCode(),
+                second.getInstrumentedSourceCode().replace(second.getSourceName(), first.getSourceName()));
+    }
+
+    @Test
+    public void sameSourceUnderTheSameNameIsOnlyBoundOnce() {
+        final String sourceCode = Data.getClassJsSourceCode() + "\nvar sameSourceUnderTheSameName = true;\n";
+
+        final ScriptInstrumenter first = new ScriptInstrumenter(factory, COVERAGE_VARIABLE_NAME);
+        first.setCacheInstrumentedCode(true);
+        first.preProcess(htmlPage, sourceCode, "file:/Class.js", 1, htmlElement);
+
+        final ScriptInstrumenter second = new ScriptInstrumenter(factory, COVERAGE_VARIABLE_NAME);
+        second.setCacheInstrumentedCode(true);
+        second.preProcess(htmlPage, sourceCode, "file:/Class.js", 1, htmlElement);
+
+        assertSame(first.getScriptDataList().get(0), second.getScriptDataList().get(0));
+    }
+
+    @Test
+    public void preProcessBySplicing() {
+        final ScriptInstrumenter regenerating = new ScriptInstrumenter(factory, COVERAGE_VARIABLE_NAME);
+        regenerating.preProcess(htmlPage, Data.getClassJsSourceCode(), "file:/Class.js", 1, htmlElement);
+
+        final ScriptInstrumenter splicing = new ScriptInstrumenter(factory, COVERAGE_VARIABLE_NAME);
+        splicing.setPreserveSourceFormatting(true);
+        splicing.preProcess(htmlPage, Data.getClassJsSourceCode(), "file:/Class.js", 1, htmlElement);
+
+        final ScriptData expected = regenerating.getScriptDataList().get(0);
+        final ScriptData actual = splicing.getScriptDataList().get(0);
+
+        assertEquals(expected.getLineNumbersOfAllStatements(), actual.getLineNumbersOfAllStatements());
+        assertSameLinesAndValid(actual);
+    }
+
+    @Test
+    public void preProcessBySplicingBodiesWithoutBraces() {
+        final String sourceCode = "var a = 1, b = 0;\n" +
+                "if (a) b++;\n" +
+                "else if (b) a++;\n" +
+                "else a--;\n" +
+                "while (a < 10) a++\n" +
+                "do b++; while (b < 10);\n" +
+                "for (;;);\n" +
+                "switch (a) { case 1: b = 2; break; default: b = 3 }\n";
+
+        final ScriptInstrumenter instrumenter = new ScriptInstrumenter(factory, COVERAGE_VARIABLE_NAME);
+        instrumenter.setPreserveSourceFormatting(true);
+        instrumenter.preProcess(htmlPage, sourceCode, "file:/braces.js", 1, htmlElement);
+
+        final ScriptData data = instrumenter.getScriptDataList().get(0);
+
+        assertEquals(8, data.getNumberOfStatements());
+        assertTrue(data.getInstrumentedSourceCode().endsWith(sourceCode.substring(sourceCode.indexOf("for (;;);"))
+                .replace("case 1: ", "case 1: __coverage_data['/braces.js'][8]++; ")
+                .replace("break;", "__coverage_data['/braces.js'][8]++; break;")
+                .replace("default: ", "default: __coverage_data['/braces.js'][8]++; ")
+                .replace("switch", "__coverage_data['/braces.js'][8]++; switch")));
+        assertSameLinesAndValid(data);
+    }
+
+    @Test
+    public void arrayCounters() {
+        final String sourceCode = "var a = 0;\nfor (var i = 0; i < 3; i++) {\n    a++;\n}\n";
+
+        final ScriptInstrumenter instrumenter = new ScriptInstrumenter(factory, COVERAGE_VARIABLE_NAME);
+        instrumenter.setCounterStyle(CounterStyle.ARRAY);
+        instrumenter.preProcess(htmlPage, sourceCode, "file:/first/counters.js", 1, htmlElement);
+        instrumenter.preProcess(htmlPage, sourceCode, "file:/second/counters.js", 1, htmlElement);
+
+        final ScriptData first = instrumenter.getScriptDataList().get(0);
+        final ScriptData second = instrumenter.getScriptDataList().get(1);
+
+        assertTrue(first.getInstrumentedSourceCode().contains("['/first/counters.js'] = [0,0,0];"));
+        assertFalse(first.getInstrumentedSourceCode().equals(
+                second.getInstrumentedSourceCode().replace("/second/", "/first/")));
+
+        final Context cx = Context.enter();
+
+        try {
+            final Scriptable scope = cx.initStandardObjects();
+            scope.put("window", scope, scope);
+
+            cx.evaluateString(scope, first.getInstrumentedSourceCode(), first.getSourceName(), 1, null);
+
+            final Scriptable coverageData = (Scriptable) scope.get(COVERAGE_VARIABLE_NAME, scope);
+            final Scriptable counters = (Scriptable) coverageData.get(first.getSourceName(), coverageData);
+
+            assertEquals(1, ((Number) counters.get(0, counters)).intValue());
+            assertEquals(1, ((Number) counters.get(1, counters)).intValue());
+            assertEquals(3, ((Number) counters.get(2, counters)).intValue());
+        } finally {
+            Context.exit();
+        }
+    }
+
+    @Test
+    public void lineHitOnly() {
+        final String sourceCode = "var a = 0;\nfor (var i = 0; i < 3; i++) {\n    a++;\n}\n";
+
+        final ScriptInstrumenter instrumenter = new ScriptInstrumenter(factory, COVERAGE_VARIABLE_NAME);
+        instrumenter.setLineHitOnly(true);
+        instrumenter.preProcess(htmlPage, sourceCode, "file:/hits.js", 1, htmlElement);
+
+        final ScriptData data = instrumenter.getScriptDataList().get(0);
+        final Context cx = Context.enter();
+
+        try {
+            final Scriptable scope = cx.initStandardObjects();
+            scope.put("window", scope, scope);
+
+            cx.evaluateString(scope, data.getInstrumentedSourceCode(), data.getSourceName(), 1, null);
+
+            final Scriptable coverageData = (Scriptable) scope.get(COVERAGE_VARIABLE_NAME, scope);
+            final Scriptable counters = (Scriptable) coverageData.get(data.getSourceName(), coverageData);
+
+            assertEquals(3, data.getNumberOfStatements());
+
+            for (final Integer lineNr : data.getLineNumbersOfAllStatements()) {
+                assertEquals(1, ((Number) counters.get(lineNr, counters)).intValue());
+            }
+        } finally {
+            Context.exit();
+        }
+    }
+
+    @Test
+    public void contextIsExitedAfterInstrumenting() {
+        final HtmlUnitContextFactory contextFactory = new WebClient().getJavaScriptEngine().getContextFactory();
+
+        final ScriptInstrumenter instrumenter = new ScriptInstrumenter(contextFactory, COVERAGE_VARIABLE_NAME);
+        instrumenter.preProcess(htmlPage, "var a = 1;", "file:/first.js", 1, htmlElement);
+        instrumenter.preProcess(htmlPage, "var b = 2;", "file:/second.js", 1, htmlElement);
+
+        assertEquals(2, instrumenter.getScriptDataList().size());
+        assertNull(Context.getCurrentContext());
+    }
+
+    @Test
+    public void evalsAreNamedAfterTheirContents() {
+        final ScriptInstrumenter instrumenter = new ScriptInstrumenter(factory, COVERAGE_VARIABLE_NAME);
+        instrumenter.setCacheInstrumentedCode(true);
+
+        instrumenter.preProcess(htmlPage, "var a = 1;", "file:/test.html#12(eval)", 1, htmlElement);
+        instrumenter.preProcess(htmlPage, "var a = 1;", "file:/test.html#34(eval)", 1, htmlElement);
+        instrumenter.preProcess(htmlPage, "var b = 2;", "file:/test.html#12(eval)", 1, htmlElement);
+
+        assertEquals(2, instrumenter.getScriptDataList().size());
+
+        final ScriptData first = instrumenter.getScriptDataList().get(0);
+        final ScriptData second = instrumenter.getScriptDataList().get(1);
+
+        assertTrue(first.getSourceName().matches("eval\\([0-9a-f]{16}\\)"));
+        assertFalse(first.getSourceName().equals(second.getSourceName()));
+        assertFalse(first.isSeparateFile());
+
+        // the same code run again must not reset the counters
+        assertTrue(first.getInstrumentedSourceCode().contains(
+                "['" + first.getSourceName() + "'] = " + COVERAGE_VARIABLE_NAME + "['" + first.getSourceName() + "'] || {};"));
+    }
+
+    @Test
+    public void evalsAreIgnoredByTheirOriginalNamesAsWell() {
+        final ScriptInstrumenter instrumenter = new ScriptInstrumenter(factory, COVERAGE_VARIABLE_NAME);
+        instrumenter.setNoInstrumentMatcher(
+                new NoInstrumentMatcher(Collections.singletonList(".+/vendor/.+#\\d+\\(eval\\)")));
+
+        instrumenter.preProcess(htmlPage, "var a = 1;", "file:/vendor/lib.js#12(eval)", 1, htmlElement);
+        instrumenter.preProcess(htmlPage, "var a = 1;", "file:/app/app.js#34(eval)", 1, htmlElement);
+
+        assertEquals(1, instrumenter.getScriptDataList().size());
+        assertTrue(instrumenter.getScriptDataList().get(0).getSourceName().startsWith("eval("));
+    }
+
+    @Test
+    public void filesNamedAfterGeneratedScriptsAreNotDynamic() {
+        final ScriptInstrumenter instrumenter = new ScriptInstrumenter(factory, COVERAGE_VARIABLE_NAME);
+        instrumenter.preProcess(htmlPage, "var a = 1;", "file:/JavaScriptStringJob/job.js", 1, htmlElement);
+
+        final ScriptData data = instrumenter.getScriptDataList().get(0);
+
+        assertEquals("/JavaScriptStringJob/job.js", data.getSourceName());
+        assertTrue(data.isSeparateFile());
+    }
+
+    private void assertSameLinesAndValid(final ScriptData data) {
+        assertEquals(StringUtils.countMatches(data.getSourceCode(), "\n"),
+                StringUtils.countMatches(data.getInstrumentedSourceCode(), "\n"));
+
+        // throws if the instrumented code isn't valid
+        new Parser(new CompilerEnvirons()).parse(data.getInstrumentedSourceCode(), data.getSourceName(), 1);
+    }
+
 }
@@ -0,0 +1,80 @@
+package com.github.timurstrekalov.saga.core;
+
+import com.google.common.collect.ImmutableList;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+
+import static org.junit.Assert.*;
+
+public class TestDurationHistoryTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File baseDir;
+    private File fast;
+    private File slow;
+    private File unknown;
+    private TestDurationHistory history;
+
+    @Before
+    public void setUp() throws Exception {
+        baseDir = folder.newFolder("tests");
+        fast = new File(baseDir, "fast.html");
+        slow = new File(baseDir, "slow.html");
+        unknown = new File(baseDir, "unknown.html");
+        history = new TestDurationHistory(baseDir, new File(folder.getRoot(), TestDurationHistory.FILE_NAME));
+    }
+
+    @Test
+    public void orderIsKeptWithoutHistory() {
+        assertEquals(ImmutableList.of(fast, slow), history.sortLongestFirst(ImmutableList.of(fast, slow)));
+        assertEquals(-1, history.predictMakespan(ImmutableList.of(fast, slow), 2));
+    }
+
+    @Test
+    public void longestTestsComeFirst() {
+        history.record(fast, 100);
+        history.record(slow, 900);
+
+        assertEquals(ImmutableList.of(slow, unknown, fast),
+                history.sortLongestFirst(ImmutableList.of(fast, slow, unknown)));
+    }
+
+    @Test
+    public void makespanIsPredictedForTheGivenOrder() {
+        history.record(fast, 100);
+        history.record(slow, 900);
+
+        assertEquals(900, history.predictMakespan(ImmutableList.of(slow, fast, fast), 2));
+        assertEquals(1000, history.predictMakespan(ImmutableList.of(fast, fast, slow), 2));
+        assertEquals(1100, history.predictMakespan(ImmutableList.of(slow, fast, fast), 1));
+    }
+
+    @Test
+    public void durationsAreSmoothed() {
+        history.record(slow, 1000);
+        history.record(slow, 500);
+
+        assertEquals(750, history.predictMakespan(ImmutableList.of(slow), 1));
+    }
+
+    @Test
+    public void roundTrip() throws Exception {
+        history.record(fast, 100);
+        history.record(slow, 900);
+        history.save(ImmutableList.of(slow));
+
+        final TestDurationHistory loaded = new TestDurationHistory(baseDir,
+                new File(folder.getRoot(), TestDurationHistory.FILE_NAME));
+        loaded.load();
+
+        // fast.html isn't among the tests anymore, so it's dropped, and is expected to take as long as the average
+        assertEquals(1800, loaded.predictMakespan(ImmutableList.of(slow, fast), 1));
+    }
+
+}
@@ -0,0 +1,135 @@
+package com.github.timurstrekalov.saga.core;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Maps;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class TestSchedulerTest {
+
+    private final File stuck = new File("stuck.html");
+    private final File slow = new File("slow.html");
+    private final File fast = new File("fast.html");
+
+    private final Map<File, RunStats> reportedStats = Maps.newConcurrentMap();
+    private final AtomicInteger reportCount = new AtomicInteger();
+
+    // called from the test threads, where a failed assertion would go unnoticed, so the reports are only counted
+    private final RunStatsListener listener = new RunStatsListener() {
+        @Override
+        public void testFinished(final RunStats runStats) {
+            reportedStats.put(runStats.test, runStats);
+            reportCount.incrementAndGet();
+        }
+    };
+
+    @Test(timeout = 10000)
+    public void stuckTestsAreAbandonedWhileOthersKeepRunning() throws IOException {
+        final CountDownLatch unstuck = new CountDownLatch(1);
+
+        final TestScheduler.TestRunner testRunner = new TestScheduler.TestRunner() {
+            @Override
+            public RunStats run(final File test, final TestScheduler.Attempt attempt) {
+                if (test.equals(stuck)) {
+                    // ignores interrupts, like a blocking socket read would
+                    awaitUninterruptibly(unstuck);
+                } else if (test.equals(fast)) {
+                    sleepUninterruptibly(400);
+                } else {
+                    sleepUninterruptibly(600);
+                }
+
+                return new RunStats(test);
+            }
+        };
+
+        try {
+            // the stuck test is abandoned after 800 ms, while the slow one, which started once the fast one was done, is
+            // still running
+            new TestScheduler(2, 600, 200).run(ImmutableList.of(stuck, fast, slow), testRunner, listener);
+        } finally {
+            unstuck.countDown();
+        }
+
+        assertEquals(3, reportCount.get());
+        assertEquals(3, reportedStats.size());
+        assertTrue(reportedStats.get(stuck).isTimedOut());
+        assertFalse(reportedStats.get(slow).isTimedOut());
+        assertFalse(reportedStats.get(fast).isTimedOut());
+    }
+
+    @Test(timeout = 10000)
+    public void abandonedTestsAreNotReportedAgainOnceTheyFinish() throws Exception {
+        final CountDownLatch finished = new CountDownLatch(1);
+        final AtomicBoolean abandonedWhenFinished = new AtomicBoolean();
+
+        final TestScheduler.TestRunner testRunner = new TestScheduler.TestRunner() {
+            @Override
+            public RunStats run(final File test, final TestScheduler.Attempt attempt) {
+                sleepUninterruptibly(500);
+                abandonedWhenFinished.set(attempt.isAbandoned());
+                finished.countDown();
+                return new RunStats(test);
+            }
+        };
+
+        new TestScheduler(1, 100, 100).run(ImmutableList.of(stuck), testRunner, listener);
+
+        assertTrue(finished.await(5, TimeUnit.SECONDS));
+        // give the attempt the chance to report the test a second time, which it mustn't take
+        Thread.sleep(100);
+
+        assertTrue(abandonedWhenFinished.get());
+        assertEquals(1, reportCount.get());
+        assertTrue(reportedStats.get(stuck).isTimedOut());
+    }
+
+    @Test
+    public void testsAreNeverAbandonedWithoutATimeout() throws IOException {
+        final TestScheduler.TestRunner testRunner = new TestScheduler.TestRunner() {
+            @Override
+            public RunStats run(final File test, final TestScheduler.Attempt attempt) {
+                sleepUninterruptibly(300);
+                return new RunStats(test);
+            }
+        };
+
+        new TestScheduler(1, 0, 0).run(ImmutableList.of(slow, fast), testRunner, listener);
+
+        assertEquals(2, reportCount.get());
+        assertFalse(reportedStats.get(slow).isTimedOut());
+    }
+
+    private static void awaitUninterruptibly(final CountDownLatch latch) {
+        while (true) {
+            try {
+                latch.await();
+                return;
+            } catch (final InterruptedException e) {
+                // keep waiting
+            }
+        }
+    }
+
+    private static void sleepUninterruptibly(final long millis) {
+        final long until = System.currentTimeMillis() + millis;
+
+        for (long remaining = millis; remaining > 0; remaining = until - System.currentTimeMillis()) {
+            try {
+                Thread.sleep(remaining);
+            } catch (final InterruptedException e) {
+                // keep sleeping
+            }
+        }
+    }
+
+}
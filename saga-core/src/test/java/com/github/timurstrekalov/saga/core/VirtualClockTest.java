@@ -0,0 +1,116 @@
+package com.github.timurstrekalov.saga.core;
+
+import net.sourceforge.htmlunit.corejs.javascript.Context;
+import net.sourceforge.htmlunit.corejs.javascript.ScriptableObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class VirtualClockTest {
+
+    private Context cx;
+    private ScriptableObject scope;
+    private VirtualClock clock;
+
+    @Before
+    public void setUp() {
+        cx = Context.enter();
+        scope = cx.initStandardObjects();
+        clock = new VirtualClock();
+        clock.register(cx, scope, null);
+    }
+
+    @After
+    public void tearDown() {
+        Context.exit();
+    }
+
+    @Test
+    public void timersRunInOrderWithoutWaiting() {
+        evaluate("var log = []; var start = Date.now();" +
+                "setTimeout(function() { log.push('b:' + (Date.now() - start >= 2000)); }, 2000);" +
+                "setTimeout(function() { log.push('a:' + (new Date().getTime() - start >= 1000)); }, 1000);");
+
+        final long realStart = System.currentTimeMillis();
+        runTimers(60000);
+
+        assertEquals("a:true,b:true", evaluate("log.join()"));
+        assertTrue(System.currentTimeMillis() - realStart < 1000);
+        assertTrue(clock.getOffset() >= 1000);
+    }
+
+    @Test
+    public void stringTimersAndArgumentsWork() {
+        evaluate("var log = [];" +
+                "setTimeout(function(a, b) { log.push(a + b); }, 10, 1, 2);" +
+                "setTimeout('log.push(\"code\")', 20);");
+
+        runTimers(60000);
+
+        assertEquals("3,code", evaluate("log.join()"));
+    }
+
+    @Test
+    public void clearedTimersDontRun() {
+        evaluate("var log = [];" +
+                "var id = setTimeout(function() { log.push('cleared'); }, 100);" +
+                "setTimeout(function() { log.push('kept'); }, 200);" +
+                "clearTimeout(id);");
+
+        runTimers(60000);
+
+        assertEquals("kept", evaluate("log.join()"));
+    }
+
+    @Test
+    public void intervalsRepeatUntilCleared() {
+        evaluate("var count = 0;" +
+                "var id = setInterval(function() { if (++count == 3) { clearInterval(id); } }, 500);");
+
+        runTimers(60000);
+
+        assertEquals(3, ((Number) evaluate("count")).intValue());
+        assertEquals(0, clock.getPendingTimerCount());
+    }
+
+    @Test
+    public void clockStopsAtTheHorizon() {
+        evaluate("var count = 0; setInterval(function() { count++; }, 1000);");
+
+        runTimers(5500);
+
+        assertEquals(5, ((Number) evaluate("count")).intValue());
+        assertEquals(1, clock.getPendingTimerCount());
+    }
+
+    @Test
+    public void datesCanStillBeConstructed() {
+        assertEquals(Boolean.TRUE, evaluate("new Date(2012, 0, 1).getFullYear() == 2012 && new Date() instanceof Date"));
+        assertEquals(Boolean.TRUE, evaluate("typeof Date() == 'string' && Date.UTC(1970, 0, 1) == 0"));
+    }
+
+    @Test
+    public void resetForgetsTimers() {
+        evaluate("setTimeout(function() {}, 1000);");
+        runTimers(60000);
+        evaluate("setTimeout(function() {}, 1000);");
+
+        clock.reset();
+
+        assertEquals(0, clock.getOffset());
+        assertEquals(0, clock.getPendingTimerCount());
+    }
+
+    private void runTimers(final long maxOffset) {
+        while (clock.runNextDueTimer() || clock.advanceToNextTimer(maxOffset)) {
+            // keep going
+        }
+    }
+
+    private Object evaluate(final String source) {
+        return cx.evaluateString(scope, source, "test.js", 1, null);
+    }
+
+}
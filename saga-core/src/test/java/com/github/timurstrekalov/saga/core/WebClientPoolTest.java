@@ -0,0 +1,80 @@
+package com.github.timurstrekalov.saga.core;
+
+import com.gargoylesoftware.htmlunit.WebClient;
+import net.sourceforge.htmlunit.corejs.javascript.NativeObject;
+import org.junit.After;
+import org.junit.Test;
+
+import java.lang.ref.WeakReference;
+
+import static org.junit.Assert.*;
+
+public class WebClientPoolTest {
+
+    private WebClientPool pool;
+
+    @After
+    public void tearDown() {
+        pool.close();
+    }
+
+    @Test
+    public void clientsAreReused() {
+        pool = new WebClientPool(1, 0, 0, false);
+
+        final WebClient client = pool.borrow();
+        pool.release(client);
+
+        assertSame(client, pool.borrow());
+    }
+
+    @Test
+    public void clientsAreRetiredAfterMaxTests() {
+        pool = new WebClientPool(1, 2, 0, false);
+
+        final WebClient client = pool.borrow();
+        pool.release(client);
+        assertSame(client, pool.borrow());
+        pool.release(client);
+
+        final WebClient freshClient = pool.borrow();
+        assertNotSame(client, freshClient);
+        pool.release(freshClient);
+    }
+
+    @Test
+    public void retiredClientsAreNotReferencedByThePool() {
+        pool = new WebClientPool(1, 1, 0, false);
+
+        WebClient client = pool.borrow();
+        final WeakReference<WebClient> clientRef = new WeakReference<WebClient>(client);
+        pool.release(client);
+        client = null;
+
+        for (int i = 0; i < 10 && clientRef.get() != null; i++) {
+            System.gc();
+        }
+
+        assertNull(clientRef.get());
+    }
+
+    @Test
+    public void countersAreClearedOnRelease() {
+        pool = new WebClientPool(1, 0, 0, false);
+
+        final WebClient client = pool.borrow();
+        final CoverageCounters coverageCounters = ((SagaJavaScriptEngine) client.getJavaScriptEngine())
+                .getCoverageCounters();
+        coverageCounters.allocate(new NativeObject(), "/file.js", 1);
+        pool.release(client);
+
+        assertTrue(coverageCounters.isEmpty());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void foreignClientsAreRejected() {
+        pool = new WebClientPool(0, 0, 0, false);
+        pool.release(new WebClient());
+    }
+
+}
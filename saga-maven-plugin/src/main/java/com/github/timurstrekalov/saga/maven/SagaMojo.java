@@ -45,6 +45,9 @@ public class SagaMojo extends AbstractMojo {
     private Boolean outputInstrumentedFiles;
 
     /**
+     * @description Regular expressions matching the names of the scripts to exclude from instrumentation. Eval'd and
+     * generated scripts are named eval(&lt;hash&gt;) and JavaScriptStringJob(&lt;hash&gt;) after their code, but are
+     * also matched by the names they had before, e.g. page.html#12(eval)
      * @parameter
      */
     private String[] noInstrumentPatterns;
@@ -54,6 +57,19 @@ public class SagaMojo extends AbstractMojo {
      */
     private Boolean cacheInstrumentedCode;
 
+    /**
+     * @description The maximum approximate size of the instrumented code kept in memory, in bytes (256 MB by default)
+     * @parameter
+     */
+    private Long instrumentedCodeCacheMaxBytes;
+
+    /**
+     * @description Clear the instrumented code kept in memory by previous builds run by the same process before
+     * running the tests
+     * @parameter
+     */
+    private Boolean clearInstrumentedCodeCache;
+
     /**
      * @parameter
      */
@@ -84,6 +100,104 @@ public class SagaMojo extends AbstractMojo {
      */
     private String sourcesToPreloadEncoding;
 
+    /**
+     * @description Directory to keep instrumented scripts in between runs, so unchanged files aren't instrumented again
+     * @parameter
+     */
+    private File instrumentationCacheDir;
+
+    /**
+     * @description Insert the coverage counters into the original source instead of regenerating it from the syntax
+     * tree, keeping the formatting and line numbers of the instrumented files
+     * @parameter
+     */
+    private Boolean preserveSourceFormatting;
+
+    /**
+     * @description How the instrumented code counts executed statements: PROPERTY (default), ARRAY, which binds an
+     * array of counters to a short alias once per script and is cheaper to update, or HOST, which does the same with
+     * counters kept on the Java side
+     * @parameter
+     */
+    private String counterStyle;
+
+    /**
+     * @description Only record whether each line was executed instead of how many times, which makes the overhead of
+     * the instrumented code much lower
+     * @parameter
+     */
+    private Boolean lineHitOnly;
+
+    /**
+     * @description The number of tests after which a web client is replaced with a fresh one, which keeps the memory
+     * usage of long runs flat. No limit by default
+     * @parameter
+     */
+    private Integer maxTestsPerWebClient;
+
+    /**
+     * @description The number of bytes allocated while running tests after which a web client is replaced with a fresh
+     * one. No limit by default
+     * @parameter
+     */
+    private Long maxWebClientAllocatedBytes;
+
+    /**
+     * @description The number of worker JVMs to split the tests between. 0 (default) runs the tests in Maven's JVM
+     * @parameter
+     */
+    private Integer forkCount;
+
+    /**
+     * @description The maximum heap size of every worker JVM, e.g. 512m
+     * @parameter
+     */
+    private String forkedWorkerMaxHeap;
+
+    /**
+     * @description The maximum number of threads every worker JVM uses. Defaults to the thread count divided by the
+     * fork count
+     * @parameter
+     */
+    private Integer forkedWorkerThreadCount;
+
+    /**
+     * @description How long a single test may run, in milliseconds, before its scripts are stopped and it's reported
+     * as timed out. The coverage it has recorded until then is kept. No limit by default
+     * @parameter
+     */
+    private Long testTimeout;
+
+    /**
+     * @description How many JavaScript instructions a single test may execute before its scripts are stopped and it's
+     * reported as timed out. No limit by default
+     * @parameter
+     */
+    private Long instructionBudget;
+
+    /**
+     * @description JavaScript expression that becomes true once a test has finished, e.g.
+     * jasmine.getEnv().currentRunner().finished. Coverage is then collected as soon as it holds, instead of waiting
+     * for all background JavaScript to finish, which takes long when tests keep timers running. By default, Saga
+     * waits for background JavaScript
+     * @parameter
+     */
+    private String completionPredicate;
+
+    /**
+     * @description Run setTimeout and setInterval on a virtual clock, which jumps ahead to the next timer whenever
+     * there's nothing else to do instead of waiting for it. Date follows the same clock
+     * @parameter
+     */
+    private Boolean virtualClock;
+
+    /**
+     * @description Format of the raw coverage reports: LCOV (default), or BINARY, which is much smaller and quicker to
+     * write and read, and can be turned into LCOV with com.github.timurstrekalov.saga.core.LcovConverter
+     * @parameter
+     */
+    private String rawReportFormat;
+
     public void execute() throws MojoExecutionException {
         try {
 
@@ -91,6 +205,8 @@ public class SagaMojo extends AbstractMojo {
 
             gen.setOutputInstrumentedFiles(outputInstrumentedFiles);
             gen.setCacheInstrumentedCode(cacheInstrumentedCode);
+            gen.setInstrumentedCodeCacheMaxBytes(instrumentedCodeCacheMaxBytes);
+            gen.setClearInstrumentedCodeCache(clearInstrumentedCodeCache);
             gen.setNoInstrumentPatterns(noInstrumentPatterns);
             gen.setOutputStrategy(outputStrategy);
             gen.setThreadCount(threadCount);
@@ -98,6 +214,20 @@ public class SagaMojo extends AbstractMojo {
             gen.setBackgroundJavaScriptTimeout(backgroundJavaScriptTimeout);
             gen.setSourcesToPreload(sourcesToPreload);
             gen.setSourcesToPreloadEncoding(sourcesToPreloadEncoding);
+            gen.setInstrumentationCacheDir(instrumentationCacheDir);
+            gen.setPreserveSourceFormatting(preserveSourceFormatting);
+            gen.setCounterStyle(counterStyle);
+            gen.setLineHitOnly(lineHitOnly);
+            gen.setMaxTestsPerWebClient(maxTestsPerWebClient);
+            gen.setMaxWebClientAllocatedBytes(maxWebClientAllocatedBytes);
+            gen.setForkCount(forkCount);
+            gen.setForkedWorkerMaxHeap(forkedWorkerMaxHeap);
+            gen.setForkedWorkerThreadCount(forkedWorkerThreadCount);
+            gen.setTestTimeout(testTimeout);
+            gen.setInstructionBudget(instructionBudget);
+            gen.setCompletionPredicate(completionPredicate);
+            gen.setVirtualClock(virtualClock);
+            gen.setRawReportFormat(rawReportFormat);
 
             try {
                 gen.run();